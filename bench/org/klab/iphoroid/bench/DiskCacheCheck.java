@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.klab.iphoroid.util.DiskCache;
+
+
+/**
+ * {@link DiskCache} を一時ディレクトリに対して JVM 上で検証します。
+ * <ul>
+ * <li>ジャーナルの再生 (インデックスがある場合、無い場合)</li>
+ * <li>上限を越えた時の LRU での削除</li>
+ * <li>書き込み途中で落ちた場合、ジャーナルが壊れていた場合の復旧</li>
+ * <li>{@link DiskCache#contains(String)} がキャッシュのロックを待たないこと</li>
+ * </ul>
+ * Android のライブラリには含めません。以下の様に JVM で実行してください。失敗すると終了コードが 1 になります。
+ * <pre>
+ *     javac -d /tmp/bench src/org/klab/iphoroid/util/DiskCache.java \
+ *         src/org/klab/iphoroid/util/DiskCacheIndex.java \
+ *         bench/org/klab/iphoroid/bench/DiskCacheCheck.java
+ *     java -cp /tmp/bench org.klab.iphoroid.bench.DiskCacheCheck
+ * </pre>
+ */
+public class DiskCacheCheck {
+
+    /** */
+    private int failures;
+
+    /** */
+    public static void main(String[] args) throws IOException {
+        DiskCacheCheck check = new DiskCacheCheck();
+        check.journalReplay();
+        check.journalReplayWithoutIndex();
+        check.eviction();
+        check.crashWhileEditing();
+        check.brokenJournal();
+        check.containsWithoutLock();
+        if (check.failures > 0) {
+            System.out.println("FAILED: " + check.failures);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /** 書き込んで開き直すと残っていて、削除したものは消えている */
+    void journalReplay() throws IOException {
+        File directory = newDirectory();
+        DiskCache cache = DiskCache.open(directory, 1024);
+        put(cache, "a", "alpha");
+        put(cache, "b", "bravo");
+        put(cache, "c", "charlie");
+        cache.remove("b");
+        cache.close();
+
+        cache = DiskCache.open(directory, 1024);
+        expect("replay: a", "alpha", read(cache, "a"));
+        expect("replay: b", null, read(cache, "b"));
+        expect("replay: c", "charlie", read(cache, "c"));
+        expect("replay: size", 12L, cache.size());
+        cache.close();
+        delete(directory);
+    }
+
+    /** インデックスが無い場合はジャーナルから作り直す */
+    void journalReplayWithoutIndex() throws IOException {
+        File directory = newDirectory();
+        DiskCache cache = DiskCache.open(directory, 1024);
+        put(cache, "a", "alpha");
+        put(cache, "b", "bravo");
+        put(cache, "a", "alpha2");
+        cache.close();
+        new File(directory, "index").delete();
+
+        cache = DiskCache.open(directory, 1024);
+        expect("no index: a", "alpha2", read(cache, "a"));
+        expect("no index: b", "bravo", read(cache, "b"));
+        expect("no index: size", 11L, cache.size());
+        cache.close();
+        delete(directory);
+    }
+
+    /** 上限を越えると最後にアクセスされたのが古いものから消える */
+    void eviction() throws IOException {
+        File directory = newDirectory();
+        DiskCache cache = DiskCache.open(directory, 10);
+        put(cache, "a", "aaaa");
+        put(cache, "b", "bbbb");
+        read(cache, "a"); // b が一番古くなる
+        put(cache, "c", "cccc");
+        expect("evict: a", "aaaa", read(cache, "a"));
+        expect("evict: b", null, read(cache, "b"));
+        expect("evict: c", "cccc", read(cache, "c"));
+        expect("evict: size", 8L, cache.size());
+
+        cache.setMaxSize(4);
+        expect("shrink: a", null, read(cache, "a"));
+        expect("shrink: c", "cccc", read(cache, "c"));
+        cache.close();
+
+        cache = DiskCache.open(directory, 4);
+        expect("evict replay: a", null, read(cache, "a"));
+        expect("evict replay: b", null, read(cache, "b"));
+        expect("evict replay: c", "cccc", read(cache, "c"));
+        cache.close();
+        delete(directory);
+    }
+
+    /** commit も abort もせずに落ちたエントリは次に開いた時に捨てられる */
+    void crashWhileEditing() throws IOException {
+        File directory = newDirectory();
+        DiskCache cache = DiskCache.open(directory, 1024);
+        put(cache, "a", "alpha");
+        DiskCache.Editor editor = cache.edit("b");
+        OutputStream os = editor.newOutputStream();
+        os.write("bra".getBytes("UTF-8"));
+        os.close();
+        cache.flush();
+        // close() せずに捨てる (プロセスが落ちた)
+
+        cache = DiskCache.open(directory, 1024);
+        expect("crash: b before load", null, read(cache, "b"));
+        put(cache, "c", "charlie"); // ジャーナルを読み込ませる
+        expect("crash: a", "alpha", read(cache, "a"));
+        expect("crash: b", null, read(cache, "b"));
+        expect("crash: c", "charlie", read(cache, "c"));
+        expect("crash: size", 12L, cache.size());
+        expect("crash: dirty file", 0, countTmpFiles(directory));
+        cache.close();
+
+        cache = DiskCache.open(directory, 1024);
+        expect("crash replay: b", null, read(cache, "b"));
+        expect("crash replay: size", 12L, cache.size());
+        cache.close();
+        delete(directory);
+    }
+
+    /** ジャーナルが壊れていたら空にして使い続ける */
+    void brokenJournal() throws IOException {
+        File directory = newDirectory();
+        DiskCache cache = DiskCache.open(directory, 1024);
+        put(cache, "a", "alpha");
+        cache.close();
+        OutputStream os = new FileOutputStream(new File(directory, "journal"), true);
+        os.write("GARBAGE\n".getBytes("UTF-8"));
+        os.close();
+        new File(directory, "index").delete();
+
+        cache = DiskCache.open(directory, 1024);
+        expect("broken: a", null, read(cache, "a"));
+        put(cache, "b", "bravo");
+        expect("broken: b", "bravo", read(cache, "b"));
+        expect("broken: size", 5L, cache.size());
+        cache.close();
+        delete(directory);
+    }
+
+    /** 他のスレッドがジャーナルを読み込んでいる (ロックを持っている) 間も contains は返る */
+    void containsWithoutLock() throws IOException {
+        File directory = newDirectory();
+        DiskCache cache = DiskCache.open(directory, 1024);
+        put(cache, "a", "alpha");
+        cache.close();
+
+        final DiskCache reopened = DiskCache.open(directory, 1024);
+        final boolean[] result = new boolean[2];
+        Thread thread = new Thread() {
+            public void run() {
+                result[0] = reopened.contains("a");
+                result[1] = true;
+            }
+        };
+        synchronized (reopened) {
+            thread.start();
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        expect("lock free: returned", true, result[1]);
+        expect("lock free: a", true, result[0]);
+        reopened.close();
+        delete(directory);
+    }
+
+    /** */
+    private static void put(DiskCache cache, String key, String value) throws IOException {
+        DiskCache.Editor editor = cache.edit(key);
+        OutputStream os = editor.newOutputStream();
+        try {
+            os.write(value.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        editor.commit();
+    }
+
+    /** @return null when not cached */
+    private static String read(DiskCache cache, String key) throws IOException {
+        File file = cache.get(key);
+        if (file == null) {
+            return null;
+        }
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int r = is.read(buffer, offset, buffer.length - offset);
+                if (r == -1) {
+                    break;
+                }
+                offset += r;
+            }
+            return new String(buffer, 0, offset, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    /** */
+    private static int countTmpFiles(File directory) {
+        int count = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".tmp")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** */
+    private static File newDirectory() throws IOException {
+        File directory = File.createTempFile("DiskCacheCheck", "");
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    /** */
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /** */
+    private void expect(String name, Object expected, Object actual) {
+        if (expected == null ? actual == null : expected.equals(actual)) {
+            System.out.println("ok: " + name);
+        } else {
+            System.out.println("NG: " + name + ", expected: " + expected + ", actual: " + actual);
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.klab.iphoroid.util.Cache;
+import org.klab.iphoroid.widget.support.ImageQueue;
+
+
+/**
+ * 画像読み込みのスケジューリングを端末無しで計測します。
+ * <p>
+ * 記録したスクロール (もしくは組み込みのスクロール) を仮想時間で再生し、
+ * {@link org.klab.iphoroid.widget.support.ImageLoader} と同じ {@link ImageQueue}、
+ * {@link org.klab.iphoroid.widget.support.ImageCache} と同じ {@link Cache} を、
+ * 遅延を指定できる偽の取得、デコードで動かします。
+ * ListView の様に画面から外れた行の view は使いまわされるものとします。
+ * </p>
+ * <p>
+ * 結果としてキャッシュのヒット率、無駄になったダウンロード (誰にも表示されなかったもの)、
+ * 行ごとの表示までの時間を出力します。
+ * </p>
+ * Android のライブラリには含めません。以下の様に JVM で実行してください。
+ * <pre>
+ *     javac -d /tmp/bench src/org/klab/iphoroid/util/Cache.java \
+ *         src/org/klab/iphoroid/widget/support/ImageQueue.java \
+ *         bench/org/klab/iphoroid/bench/ImagePipelineBench.java
+ *     java -cp /tmp/bench org.klab.iphoroid.bench.ImagePipelineBench -workers 3 -fetch 300 [-rows] [trace.txt]
+ * </pre>
+ * トレースは 1 行に "時刻[msec] 先頭の位置 表示数" です。# 以降は無視します。
+ */
+public class ImagePipelineBench {
+
+    /** 行数 */
+    private int rows = 200;
+    /** 異なる画像の数, 行数より少ないと同じ画像を複数の行で使う */
+    private int images = 200;
+    /** 取得用のスレッド数 */
+    private int workers = 3;
+    /** デコード用のスレッド数 */
+    private int decoders = 2;
+    /** 取得の時間 [msec] */
+    private int fetch = 200;
+    /** 取得の時間のばらつき [msec] */
+    private int fetchJitter = 150;
+    /** デコードの時間 [msec] */
+    private int decode = 30;
+    /** メモリキャッシュの数 */
+    private int cacheSize = 70;
+    /** 取得待ちのキューの最大数 */
+    private int queueSize = 48;
+    /** [msec] */
+    private long maxAge = 15 * 1000;
+    /** */
+    private boolean lifo = true;
+    /** 行ごとの結果も出力する */
+    private boolean printRows;
+    /** */
+    private long seed = 1;
+
+    /** 1 行の読み込み要求, 表示されている間だけ有効 */
+    private class Request implements ImageQueue.Entry {
+        final int position;
+        final String key;
+        final long createdAt;
+        boolean cancelled;
+        Request(int position, long createdAt) {
+            this.position = position;
+            this.key = "image" + (position % images);
+            this.createdAt = createdAt;
+        }
+        public String getCacheKey() {
+            return key;
+        }
+        public int getPriority() {
+            return 0;
+        }
+        public Integer getTag() {
+            return position;
+        }
+        public Object getScope() {
+            return scope;
+        }
+        public boolean isStale(long now, long maxAge) {
+            return cancelled || !isVisible() || (maxAge > 0 && now - createdAt > maxAge);
+        }
+        public boolean isVisible() {
+            return current[position] == this;
+        }
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /** 仮想時間の出来事 */
+    private abstract class Event implements Comparable<Event> {
+        final long time;
+        final long sequence = ++eventSequence;
+        Event(long time) {
+            this.time = time;
+        }
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+        }
+        abstract void run();
+    }
+
+    /** 行ごとの結果 */
+    private static class RowStats {
+        /** 表示された (getView された) 回数 */
+        int appearances;
+        /** 画像が設定された回数 */
+        int displayed;
+        /** 表示までの時間の合計 [msec] */
+        long total;
+        /** [msec] */
+        long max;
+    }
+
+    /** 表示範囲を区別するための画面 */
+    private final Object scope = new Object();
+
+    /** */
+    private ImageQueue<Request> queue;
+
+    /** */
+    private Cache<String, Boolean> cache;
+
+    /** */
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+
+    /** */
+    private long eventSequence;
+
+    /** 仮想時刻 [msec] */
+    private long now;
+
+    /** 行ごとの表示中の要求, 表示されていない行は null */
+    private Request[] current;
+
+    /** */
+    private int first = -1, last = -1;
+
+    /** */
+    private int idleWorkers, idleDecoders;
+
+    /** デコード待ち */
+    private final LinkedList<Request> decodeQueue = new LinkedList<Request>();
+
+    /** */
+    private Random random;
+
+    /** 計測値 */
+    private int lookups, hits, downloads, wasted, coalesced, dropped, cancelled, evicted;
+
+    /** 表示までの時間 [msec] */
+    private final List<Long> timeToDisplay = new ArrayList<Long>();
+
+    /** */
+    private RowStats[] rowStats;
+
+    /** */
+    public static void main(String[] args) throws IOException {
+        ImagePipelineBench bench = new ImagePipelineBench();
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-rows")) {
+                bench.printRows = true;
+            } else if (arg.equals("-fifo")) {
+                bench.lifo = false;
+            } else if (arg.startsWith("-") && i + 1 < args.length) {
+                bench.set(arg.substring(1), Long.parseLong(args[++i]));
+            } else {
+                file = arg;
+            }
+        }
+        List<long[]> trace = file != null ? readTrace(file) : bench.makeTrace();
+        bench.run(trace);
+        bench.report(System.out);
+    }
+
+    /** */
+    private void set(String name, long value) {
+        if (name.equals("rows")) {
+            rows = (int) value;
+            images = Math.min(images, rows);
+        } else if (name.equals("images")) {
+            images = (int) value;
+        } else if (name.equals("workers")) {
+            workers = (int) value;
+        } else if (name.equals("decoders")) {
+            decoders = (int) value;
+        } else if (name.equals("fetch")) {
+            fetch = (int) value;
+        } else if (name.equals("jitter")) {
+            fetchJitter = (int) value;
+        } else if (name.equals("decode")) {
+            decode = (int) value;
+        } else if (name.equals("cache")) {
+            cacheSize = (int) value;
+        } else if (name.equals("queue")) {
+            queueSize = (int) value;
+        } else if (name.equals("maxAge")) {
+            maxAge = value;
+        } else if (name.equals("seed")) {
+            seed = value;
+        } else {
+            throw new IllegalArgumentException("unknown option: -" + name);
+        }
+    }
+
+    /** "時刻 先頭の位置 表示数" の行を読みます。 */
+    private static List<long[]> readTrace(String file) throws IOException {
+        List<long[]> trace = new ArrayList<long[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] values = line.split("\\s+");
+                trace.add(new long[] { Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2]) });
+            }
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+
+    /**
+     * ゆっくりスクロール、FLING、停止、逆方向の FLING、停止を 1 フレーム (16 msec) ごとに記録したものを作ります。
+     */
+    private List<long[]> makeTrace() {
+        int visible = 8;
+        int max = rows - visible;
+        List<long[]> trace = new ArrayList<long[]>();
+        long time = 0;
+        time = scroll(trace, time, 0, Math.min(40, max), 4000, visible);
+        time = scroll(trace, time, Math.min(40, max), Math.min(160, max), 1500, visible);
+        time += 2000;
+        time = scroll(trace, time, Math.min(160, max), Math.min(60, max), 1000, visible);
+        trace.add(new long[] { time + 3000, Math.min(60, max), visible });
+        return trace;
+    }
+
+    /** from から to まで duration [msec] で等速にスクロールします。 */
+    private static long scroll(List<long[]> trace, long time, int from, int to, long duration, int visible) {
+        for (long t = 0; t <= duration; t += 16) {
+            trace.add(new long[] { time + t, from + (to - from) * t / duration, visible });
+        }
+        return time + duration;
+    }
+
+    /** */
+    private void run(List<long[]> trace) {
+        queue = new ImageQueue<Request>();
+        queue.setMaxQueueSize(queueSize, new ArrayList<Request>());
+        queue.setMaxAge(maxAge);
+        queue.setLifo(lifo);
+        cache = new Cache<String, Boolean>(cacheSize, -1);
+        cache.setExpiredListener(new Cache.OnExpiredListener<Boolean>() {
+            public void onExpired(Object key, Boolean value) {
+                evicted++;
+            }
+        });
+        current = new Request[rows];
+        rowStats = new RowStats[rows];
+        for (int i = 0; i < rows; i++) {
+            rowStats[i] = new RowStats();
+        }
+        idleWorkers = workers;
+        idleDecoders = decoders;
+        random = new Random(seed);
+
+        for (final long[] frame : trace) {
+            events.add(new Event(frame[0]) {
+                void run() {
+                    onScroll((int) frame[1], (int) frame[2]);
+                }
+            });
+        }
+        while (!events.isEmpty()) {
+            Event event = events.poll();
+            now = event.time;
+            event.run();
+            dispatch();
+        }
+    }
+
+    /** 表示範囲が変わった時, 新しく見えた行は getView() される */
+    private void onScroll(int newFirst, int count) {
+        int newLast = Math.min(rows - 1, newFirst + count - 1);
+        if (newFirst == first && newLast == last) {
+            return;
+        }
+        for (int position = Math.max(0, first); first >= 0 && position <= last; position++) {
+            if (position < newFirst || position > newLast) {
+                leave(position);
+            }
+        }
+        for (int position = newFirst; position <= newLast; position++) {
+            if (first < 0 || position < first || position > last) {
+                getView(position);
+            }
+        }
+        first = newFirst;
+        last = newLast;
+        List<Request> removed = new ArrayList<Request>();
+        queue.setViewport(scope, first, last, removed);
+        cancelled += removed.size();
+    }
+
+    /** HasImage.Util#setImage() にあたる */
+    private void getView(int position) {
+        rowStats[position].appearances++;
+        lookups++;
+        if (cache.get("image" + (position % images)) != null) {
+            hits++;
+            current[position] = null;
+            display(position, 0);
+            return;
+        }
+        Request request = new Request(position, now);
+        current[position] = request;
+        List<Request> removed = new ArrayList<Request>();
+        if (!queue.offer(request, now, removed)) {
+            coalesced++;
+        }
+        dropped += removed.size();
+    }
+
+    /** view が使いまわされる, 前の要求はキャンセル */
+    private void leave(int position) {
+        Request request = current[position];
+        if (request != null) {
+            request.cancel();
+            if (queue.remove(request)) {
+                cancelled++;
+            }
+            current[position] = null;
+        }
+    }
+
+    /** 空いているスレッドに要求を割り当てます。 */
+    private void dispatch() {
+        while (idleWorkers > 0) {
+            List<Request> removed = new ArrayList<Request>();
+            final Request request = queue.poll(now, removed);
+            dropped += removed.size();
+            if (request == null) {
+                break;
+            }
+            if (cache.get(request.key) != null) { // 取り出した時にはキャッシュにある
+                deliver(request);
+                continue;
+            }
+            idleWorkers--;
+            events.add(new Event(now + fetch + random.nextInt(fetchJitter + 1)) {
+                void run() {
+                    idleWorkers++;
+                    downloads++;
+                    if (idleDecoders > 0) {
+                        startDecode(request);
+                    } else {
+                        decodeQueue.add(request);
+                    }
+                }
+            });
+        }
+    }
+
+    /** */
+    private void startDecode(final Request request) {
+        idleDecoders--;
+        events.add(new Event(now + decode) {
+            void run() {
+                idleDecoders++;
+                cache.put(request.key, Boolean.TRUE);
+                deliver(request);
+                if (!decodeQueue.isEmpty()) {
+                    startDecode(decodeQueue.removeFirst());
+                }
+            }
+        });
+    }
+
+    /** 結果を待っていた要求のうち、まだ表示されている行に設定します。 */
+    private void deliver(Request request) {
+        boolean used = false;
+        for (Request waiter : queue.complete(request.key)) {
+            if (!waiter.cancelled && waiter.isVisible()) {
+                display(waiter.position, now - waiter.createdAt);
+                current[waiter.position] = null;
+                used = true;
+            }
+        }
+        if (!used) {
+            wasted++;
+        }
+    }
+
+    /** */
+    private void display(int position, long time) {
+        RowStats stats = rowStats[position];
+        stats.displayed++;
+        stats.total += time;
+        stats.max = Math.max(stats.max, time);
+        timeToDisplay.add(time);
+    }
+
+    /** */
+    private void report(PrintStream out) {
+        int lost = 0;
+        for (int i = 0; i < rows; i++) {
+            lost += rowStats[i].appearances - rowStats[i].displayed;
+        }
+        out.println("config: rows: " + rows + ", images: " + images + ", workers: " + workers + ", decoders: " + decoders +
+                    ", fetch: " + fetch + "+" + fetchJitter + ", decode: " + decode + ", cache: " + cacheSize +
+                    ", queue: " + queueSize + ", " + (lifo ? "lifo" : "fifo"));
+        out.println("lookups: " + lookups + ", hits: " + hits + " (" + percent(hits, lookups) + "%)" +
+                    ", downloads: " + downloads + ", wasted: " + wasted + " (" + percent(wasted, downloads) + "%)" +
+                    ", coalesced: " + coalesced + ", dropped: " + dropped + ", cancelled: " + cancelled +
+                    ", evicted: " + evicted + ", never displayed: " + lost);
+        List<Long> times = new ArrayList<Long>(timeToDisplay);
+        Collections.sort(times);
+        out.println("time to display [msec]: n: " + times.size() + ", p50: " + percentile(times, 50) +
+                    ", p90: " + percentile(times, 90) + ", p99: " + percentile(times, 99) +
+                    ", max: " + (times.isEmpty() ? 0 : times.get(times.size() - 1)));
+        if (printRows) {
+            int slowRows = 0;
+            out.println("row\tshown\tset\tavg\tmax");
+            for (int i = 0; i < rows; i++) {
+                RowStats stats = rowStats[i];
+                if (stats.appearances == 0) {
+                    continue;
+                }
+                out.println(i + "\t" + stats.appearances + "\t" + stats.displayed + "\t" +
+                            (stats.displayed == 0 ? "-" : String.valueOf(stats.total / stats.displayed)) + "\t" + stats.max);
+                if (stats.max > fetch + fetchJitter + decode) {
+                    slowRows++;
+                }
+            }
+            out.println("rows waited longer than one fetch + decode: " + slowRows);
+        }
+    }
+
+    /** */
+    private static long percent(long value, long total) {
+        return total == 0 ? 0 : value * 100 / total;
+    }
+
+    /** @param sorted 昇順 */
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.size() * percentile / 100) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+}
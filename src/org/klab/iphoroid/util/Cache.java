@@ -89,6 +89,17 @@ public class Cache<K, V> implements Map<K, V> {
      */
     protected long maxLifetime;
 
+    /**
+     * Maximum total size of items measured by {@link #sizeOf(Object, Object)}.
+     * -1 means no limit.
+     */
+    protected long maxCacheBytes = -1;
+
+    /**
+     * Total size of items measured by {@link #sizeOf(Object, Object)}.
+     */
+    protected long cacheBytes;
+
     /**
      * Maintain the number of cache hits and misses. A cache hit occurs every
      * time the get method is called and the cache contains the requested
@@ -153,6 +164,8 @@ public class Cache<K, V> implements Map<K, V> {
         }
 
         CacheObject<V> cacheObject = new CacheObject<V>(value);
+        cacheObject.size = sizeOf(key, value);
+        cacheBytes += cacheObject.size;
         map.put(key, cacheObject);
         // Make an entry into the cache order list.
         // Store the cache order list entry so that we can get back to it
@@ -209,6 +222,7 @@ public class Cache<K, V> implements Map<K, V> {
         if (cacheObject == null) {
             return null;
         }
+        cacheBytes -= cacheObject.size;
         // Remove from the cache order list
         cacheObject.lastAccessedListNode.remove();
         cacheObject.ageListNode.remove();
@@ -231,6 +245,7 @@ public class Cache<K, V> implements Map<K, V> {
         map.clear();
         lastAccessedList.clear();
         ageList.clear();
+        cacheBytes = 0;
 
         cacheHits = 0;
         cacheMisses = 0;
@@ -388,6 +403,32 @@ public class Cache<K, V> implements Map<K, V> {
         cullCache();
     }
 
+    /**
+     * Returns the size of an item counted against {@link #setMaxCacheBytes(long)}.
+     * Measured once when the item is put. Override this to limit the cache by
+     * bytes, the default counts nothing.
+     */
+    protected long sizeOf(K key, V value) {
+        return 0;
+    }
+
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public long getMaxCacheBytes() {
+        return maxCacheBytes;
+    }
+
+    /**
+     * @param maxCacheBytes maximum total of {@link #sizeOf(Object, Object)},
+     *            -1 means no limit.
+     */
+    public synchronized void setMaxCacheBytes(long maxCacheBytes) {
+        this.maxCacheBytes = maxCacheBytes;
+        cullCache();
+    }
+
     public long getMaxLifetime() {
         return maxLifetime;
     }
@@ -443,6 +484,17 @@ public class Cache<K, V> implements Map<K, V> {
      * empty.
      */
     protected synchronized void cullCache() {
+        // Remove the least recently used elements while the total size is over
+        // the limit. The most recent one is kept even if it is larger than the
+        // limit by itself.
+        if (maxCacheBytes >= 0) {
+            while (cacheBytes > maxCacheBytes && map.size() > 1) {
+                if (remove(lastAccessedList.getLast().object, true) == null) {
+                    lastAccessedList.getLast().remove();
+                }
+            }
+        }
+
         // Check if a max cache size is defined.
         if (maxCacheSize < 0) {
             return;
@@ -503,6 +555,11 @@ public class Cache<K, V> implements Map<K, V> {
         @SuppressWarnings("unused")
         public int readCount = 0;
 
+        /**
+         * The size measured by {@link Cache#sizeOf(Object, Object)} when put.
+         */
+        public long size;
+
         /**
          * Creates a new cache object wrapper.
          * 
@@ -0,0 +1,775 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+
+/**
+ * ジャーナル付きの LRU ディスクキャッシュです。
+ * <p>
+ * 1 エントリ 1 ファイルでディレクトリに保存し、操作は追記専用のジャーナルに記録します。
+ * <ul>
+ * <li>書き込みは一時ファイルに対して行い、commit 時に rename します。
+ * 書き込み途中でプロセスが落ちても、次回 open 時に DIRTY のまま残ったエントリは破棄されます。</li>
+ * <li>合計サイズが maxSize [byte] を越えると、最後にアクセスされた時刻が古いものから削除します。</li>
+ * <li>ジャーナルは冗長な行が溜まると書き直します。</li>
+ * <li>エントリの有無はメモリマップされたインデックス ({@link DiskCacheIndex}) で判定するので、
+ * open 直後の {@link #get(String)}, {@link #contains(String)} はジャーナルを読みません。
+ * ジャーナルは最初に書き込みや削除を行う時に読み込みます。</li>
+ * <li>{@link #contains(String)} はこのキャッシュのロックを取らずインデックスだけを引くので、
+ * 他のスレッドがジャーナルの読み込みや書き直し、削除をしていても待たされません。</li>
+ * </ul>
+ * Android には依存しないので JVM 上でもそのまま使えます。thread safe です。
+ * </p>
+ * ジャーナルの書式
+ * <pre>
+ *     org.klab.iphoroid.util.DiskCache
+ *     1
+ *
+ *     DIRTY 1a79a4d60de6718e8e5b326e338ae533
+ *     CLEAN 1a79a4d60de6718e8e5b326e338ae533 8342
+ *     READ 1a79a4d60de6718e8e5b326e338ae533
+ *     REMOVE 1a79a4d60de6718e8e5b326e338ae533
+ * </pre>
+ */
+public class DiskCache {
+
+    /** */
+    static final String JOURNAL_FILE = "journal";
+    /** */
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    /** */
+    static final String INDEX_FILE = "index";
+    /** */
+    static final String MAGIC = "org.klab.iphoroid.util.DiskCache";
+    /** */
+    static final String VERSION = "1";
+
+    /** */
+    private static final String CLEAN = "CLEAN";
+    /** */
+    private static final String DIRTY = "DIRTY";
+    /** */
+    private static final String REMOVE = "REMOVE";
+    /** */
+    private static final String READ = "READ";
+
+    /** 書き込み中のファイルの拡張子 */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** ジャーナルを書き直す冗長な行数の閾値 */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    /** */
+    private final File directory;
+
+    /** */
+    private final File journalFile;
+
+    /** */
+    private final File journalFileTmp;
+
+    /** */
+    private final File indexFile;
+
+    /** 読み込まれたエントリの有無に関わらず常に有効, 一度作ったら同じものを使い続ける */
+    private volatile DiskCacheIndex index;
+
+    /** {@link #contains(String)} 用, ロック無しで参照する */
+    private volatile boolean closed;
+
+    /** ジャーナルを読み込み済み */
+    private boolean loaded;
+
+    /** 合計サイズの上限 [byte] */
+    private long maxSize;
+
+    /** 現在の合計サイズ [byte] */
+    private long size = 0;
+
+    /** */
+    private Writer journalWriter;
+
+    /** アクセス順, key は {@link #toName(String)} */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    /** ジャーナル中の不要な行数 */
+    private int redundantOpCount;
+
+    /** */
+    private DiskCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.indexFile = new File(directory, INDEX_FILE);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * ディスクキャッシュを開きます。ディレクトリが無ければ作成します。
+     * インデックスが有効ならジャーナルは読まずにすぐ返ります。
+     * ジャーナルが壊れていた場合はディレクトリの中身を消して作り直します。
+     *
+     * @param directory このキャッシュ専用のディレクトリ
+     * @param maxSize 合計サイズの上限 [byte]
+     */
+    public static DiskCache open(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        DiskCache cache = new DiskCache(directory, maxSize);
+        if (cache.journalFile.exists()) {
+            DiskCacheIndex index = DiskCacheIndex.open(cache.indexFile);
+            if (index != null) {
+                // ジャーナルは必要になるまで読まない
+                cache.index = index;
+                cache.journalWriter = cache.newJournalWriter();
+                return cache;
+            }
+            try {
+                cache.load();
+                return cache;
+            } catch (IOException e) {
+                // 壊れているので作り直す
+                cache.delete();
+            }
+        }
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("cannot create directory: " + directory);
+        }
+        cache = new DiskCache(directory, maxSize);
+        cache.reset();
+        return cache;
+    }
+
+    /** 空の状態にします。 */
+    private void reset() throws IOException {
+        entries.clear();
+        size = 0;
+        rebuildJournal();
+        if (index == null) {
+            index = DiskCacheIndex.create(indexFile, 0);
+        } // 既にある場合はロック無しで参照されているので、作り直さずに rebuildJournal() で空にしてある
+        loaded = true;
+    }
+
+    /** */
+    private Writer newJournalWriter() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+    }
+
+    /**
+     * ジャーナルを読み込みます。インデックスが無いか食い違っている場合は作り直します。
+     */
+    private void load() throws IOException {
+        if (journalWriter != null) {
+            // インデックスだけで動いていた間の READ
+            journalWriter.flush();
+        }
+        readJournal();
+        processJournal();
+        if (journalWriter == null) {
+            journalWriter = newJournalWriter();
+        }
+        List<Entry> readables = getReadableEntries();
+        if (index == null) {
+            index = DiskCacheIndex.create(indexFile, readables.size());
+            index.rebuild(readables);
+        } else if (index.size() != readables.size()) {
+            // ジャーナルとインデックスの書き込みの間で落ちた
+            index.rebuild(readables);
+        }
+        loaded = true;
+        if (journalRebuildRequired()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * 必要ならジャーナルを読み込みます。壊れていた場合は中身を消して空にします。
+     */
+    private void ensureLoaded() throws IOException {
+        if (loaded) {
+            return;
+        }
+        try {
+            load();
+        } catch (IOException e) {
+            journalWriter.close();
+            journalWriter = null;
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    deleteIfExists(file);
+                }
+            }
+            reset();
+        }
+    }
+
+    /** */
+    private List<Entry> getReadableEntries() {
+        List<Entry> result = new ArrayList<Entry>(entries.size());
+        for (Entry entry : entries.values()) {
+            if (entry.readable) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /** */
+    private void readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version) || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: " + magic + ", " + version + ", " + blank);
+            }
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line);
+                lineCount++;
+            }
+            redundantOpCount = lineCount - entries.size();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** */
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+
+        String name = parts[1];
+        if (parts[0].equals(REMOVE) && parts.length == 2) {
+            entries.remove(name);
+            return;
+        }
+        if (parts[0].equals(READ) && parts.length == 2) {
+            // アクセス順を更新するだけ
+            entries.get(name);
+            return;
+        }
+
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entry = new Entry(name);
+            entries.put(name, entry);
+        }
+
+        if (parts[0].equals(CLEAN) && parts.length == 3) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            try {
+                entry.length = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+            entry.currentEditor = new Editor(entry);
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * サイズを計算し、書き込み途中で終わったエントリを削除します。
+     */
+    private void processJournal() throws IOException {
+        deleteIfExists(journalFileTmp);
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+            Entry entry = i.next();
+            if (entry.currentEditor == null) {
+                size += entry.length;
+            } else {
+                entry.currentEditor = null;
+                if (index != null) {
+                    index.remove(entry.name);
+                }
+                deleteIfExists(entry.getCleanFile());
+                deleteIfExists(entry.getDirtyFile());
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * 冗長な行を省いたジャーナルを作成します。既存のジャーナルは置き換えられます。
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFileTmp), "UTF-8"));
+        try {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION);
+            writer.write("\n");
+            writer.write("\n");
+
+            for (Entry entry : entries.values()) {
+                if (entry.currentEditor != null) {
+                    writer.write(DIRTY + ' ' + entry.name + '\n');
+                } else {
+                    writer.write(CLEAN + ' ' + entry.name + ' ' + entry.length + '\n');
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!journalFileTmp.renameTo(journalFile)) {
+            throw new IOException("cannot rename: " + journalFileTmp);
+        }
+        journalWriter = newJournalWriter();
+        redundantOpCount = 0;
+        if (index != null) {
+            // 削除済みスロットも掃除しておく
+            index.rebuild(getReadableEntries());
+        }
+    }
+
+    /** */
+    private static void deleteIfExists(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("cannot delete: " + file);
+        }
+    }
+
+    /**
+     * key をファイル名に変換します。
+     */
+    static String toName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0x0f, 16));
+                sb.append(Character.forDigit(b & 0x0f, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * キャッシュされているファイルを取得します。
+     * 返されたファイルは以降の書き込みや削除で消える可能性があるので、すぐに読み込んでください。
+     *
+     * @return null when no cache
+     */
+    public synchronized File get(String key) throws IOException {
+        checkNotClosed();
+        String name = toName(key);
+        if (!loaded) {
+            if (!index.contains(name)) {
+                return null;
+            }
+            File file = new File(directory, name);
+            if (!file.exists()) {
+                index.remove(name);
+                return null;
+            }
+            redundantOpCount++;
+            journalWriter.write(READ + ' ' + name + '\n');
+            return file;
+        }
+
+        Entry entry = entries.get(name);
+        if (entry == null || !entry.readable) {
+            return null;
+        }
+
+        File file = entry.getCleanFile();
+        if (!file.exists()) {
+            // 外部から消された
+            removeEntry(entry);
+            return null;
+        }
+
+        redundantOpCount++;
+        journalWriter.write(READ + ' ' + name + '\n');
+        return file;
+    }
+
+    /**
+     * インデックスだけを引くので、ジャーナルの読み込み中等でも待たされません。
+     * インデックスは commit、削除と同時に更新されるので、読み込み済みのエントリと一致しています。
+     *
+     * @return true when cached
+     */
+    public boolean contains(String key) {
+        if (closed) {
+            throw new IllegalStateException("cache is closed");
+        }
+        return index.contains(toName(key));
+    }
+
+    /**
+     * key に対する書き込みを開始します。
+     *
+     * @return null when another edit is in progress
+     */
+    public synchronized Editor edit(String key) throws IOException {
+        checkNotClosed();
+        ensureLoaded();
+        String name = toName(key);
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entry = new Entry(name);
+            entries.put(name, entry);
+        } else if (entry.currentEditor != null) {
+            return null;
+        }
+
+        Editor editor = new Editor(entry);
+        entry.currentEditor = editor;
+
+        // ファイルを作る前にジャーナルに書いておく
+        journalWriter.write(DIRTY + ' ' + name + '\n');
+        journalWriter.flush();
+        return editor;
+    }
+
+    /** */
+    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+        Entry entry = editor.entry;
+        if (entry.currentEditor != editor) {
+            throw new IllegalStateException("edit is not in progress");
+        }
+
+        File dirty = entry.getDirtyFile();
+        if (success && dirty.exists()) {
+            File clean = entry.getCleanFile();
+            deleteIfExists(clean);
+            if (!dirty.renameTo(clean)) {
+                throw new IOException("cannot rename: " + dirty);
+            }
+            long oldLength = entry.length;
+            entry.length = clean.length();
+            size = size - oldLength + entry.length;
+        } else {
+            deleteIfExists(dirty);
+            success = false;
+        }
+
+        redundantOpCount++;
+        entry.currentEditor = null;
+        if (entry.readable || success) {
+            entry.readable = true;
+            journalWriter.write(CLEAN + ' ' + entry.name + ' ' + entry.length + '\n');
+            if (!index.put(entry.name, entry.length)) {
+                index.rebuild(getReadableEntries());
+            }
+        } else {
+            entries.remove(entry.name);
+            journalWriter.write(REMOVE + ' ' + entry.name + '\n');
+        }
+        journalWriter.flush();
+
+        trimToSize();
+        if (journalRebuildRequired()) {
+            rebuildJournal();
+        }
+    }
+
+    /** */
+    private boolean journalRebuildRequired() {
+        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= entries.size();
+    }
+
+    /**
+     * @return false when not cached or being edited
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        ensureLoaded();
+        Entry entry = entries.get(toName(key));
+        if (entry == null || entry.currentEditor != null) {
+            return false;
+        }
+        removeEntry(entry);
+        if (journalRebuildRequired()) {
+            rebuildJournal();
+        }
+        return true;
+    }
+
+    /** */
+    private void removeEntry(Entry entry) throws IOException {
+        index.remove(entry.name);
+        deleteIfExists(entry.getCleanFile());
+        size -= entry.length;
+        redundantOpCount++;
+        journalWriter.write(REMOVE + ' ' + entry.name + '\n');
+        entries.remove(entry.name);
+    }
+
+    /**
+     * 合計サイズが上限を越えていれば古いものから削除します。
+     */
+    private void trimToSize() throws IOException {
+        if (size <= maxSize) {
+            return;
+        }
+        List<Entry> victims = new ArrayList<Entry>();
+        long remaining = size;
+        for (Entry entry : entries.values()) {
+            if (remaining <= maxSize) {
+                break;
+            }
+            if (entry.currentEditor == null) {
+                victims.add(entry);
+                remaining -= entry.length;
+            }
+        }
+        for (Entry entry : victims) {
+            removeEntry(entry);
+        }
+    }
+
+    /** 現在の合計サイズ [byte] */
+    public synchronized long size() throws IOException {
+        checkNotClosed();
+        ensureLoaded();
+        return size;
+    }
+
+    /** 合計サイズの上限 [byte] */
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /** 上限を変更します。小さくした場合はすぐに削除を行います。 */
+    public synchronized void setMaxSize(long maxSize) throws IOException {
+        this.maxSize = maxSize;
+        if (journalWriter != null) {
+            ensureLoaded();
+            trimToSize();
+        }
+    }
+
+    /** */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /** */
+    private void checkNotClosed() {
+        if (journalWriter == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    /** ジャーナルとインデックスをディスクに書き出します。 */
+    public synchronized void flush() throws IOException {
+        checkNotClosed();
+        if (loaded) {
+            trimToSize();
+        }
+        journalWriter.flush();
+        index.force();
+    }
+
+    /** 書き込み中のものは破棄して閉じます。 */
+    public synchronized void close() throws IOException {
+        if (journalWriter == null) {
+            return;
+        }
+        if (loaded) {
+            for (Entry entry : new ArrayList<Entry>(entries.values())) {
+                if (entry.currentEditor != null) {
+                    entry.currentEditor.abort();
+                }
+            }
+            trimToSize();
+        }
+        journalWriter.close();
+        journalWriter = null;
+        closed = true;
+        if (index != null) {
+            index.force();
+        }
+    }
+
+    /** 閉じてディレクトリの中身をすべて削除します。 */
+    public void delete() throws IOException {
+        close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * エントリへの書き込みです。
+     * {@link #newOutputStream()} で書き込んで {@link #commit()} か {@link #abort()} を必ず呼んでください。
+     */
+    public final class Editor {
+
+        /** */
+        private final Entry entry;
+
+        /** 書き込み中に IOException が起きた */
+        private boolean hasErrors;
+
+        /** */
+        private Editor(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * 書き込み用のストリームを返します。IOException は commit 時に abort 扱いになります。
+         */
+        public OutputStream newOutputStream() throws IOException {
+            synchronized (DiskCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException("edit is not in progress");
+                }
+                try {
+                    return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile()));
+                } catch (FileNotFoundException e) {
+                    // ディレクトリが外から消された
+                    directory.mkdirs();
+                    return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile()));
+                }
+            }
+        }
+
+        /** 書き込んだ内容を反映します。 */
+        public void commit() throws IOException {
+            completeEdit(this, !hasErrors);
+        }
+
+        /** 書き込んだ内容を破棄します。 */
+        public void abort() throws IOException {
+            completeEdit(this, false);
+        }
+
+        /** */
+        private class FaultHidingOutputStream extends FilterOutputStream {
+            /** */
+            FaultHidingOutputStream(OutputStream out) {
+                super(out);
+            }
+            @Override
+            public void write(int oneByte) {
+                try {
+                    out.write(oneByte);
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+                try {
+                    out.write(buffer, offset, length);
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+            @Override
+            public void close() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+            @Override
+            public void flush() {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+        }
+    }
+
+    /** */
+    private final class Entry implements DiskCacheIndex.Entry {
+
+        /** {@link DiskCache#toName(String)} */
+        private final String name;
+
+        /** [byte] */
+        private long length;
+
+        /** 一度でも commit された */
+        private boolean readable;
+
+        /** null when not being edited */
+        private Editor currentEditor;
+
+        /** */
+        private Entry(String name) {
+            this.name = name;
+        }
+
+        /* */
+        public String getName() {
+            return name;
+        }
+
+        /* */
+        public long getLength() {
+            return length;
+        }
+
+        /** */
+        public File getCleanFile() {
+            return new File(directory, name);
+        }
+
+        /** */
+        public File getDirtyFile() {
+            return new File(directory, name + TMP_SUFFIX);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiskCache[" + directory + ", loaded: " + loaded + ", entries: " + (loaded ? entries.size() : index.size()) + ", size: " + size + "/" + maxSize + "]";
+    }
+}
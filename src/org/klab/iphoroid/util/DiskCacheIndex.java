@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * {@link DiskCache} のメモリマップされたインデックスです。
+ * <p>
+ * 固定長スロットのオープンアドレス法のハッシュ表をそのままファイルに置き、
+ * {@link FileChannel#map(FileChannel.MapMode, long, long)} で参照します。
+ * 起動時にジャーナルを読んだりディレクトリを列挙したりせずに、エントリの有無を O(1) で判定できます。
+ * </p>
+ * ファイルの書式 (big endian)
+ * <pre>
+ *     int magic, int version, int slotCount, int count, int tombstones, int reserved
+ *     slot[slotCount] { long hash, long length }
+ * </pre>
+ * hash が 0 は空きスロット、{@link #TOMBSTONE} は削除済みスロットです。
+ * 各メソッドはこのインデックス自身で同期するので、{@link DiskCache} のロック (ジャーナルの読み込みや書き直しの間保持される)
+ * を待たずに {@link #contains(String)} できます。
+ * 更新は {@link DiskCache} のロック内で行います。
+ */
+final class DiskCacheIndex {
+
+    /** "IPDI" */
+    private static final int MAGIC = 0x49504449;
+    /** */
+    private static final int VERSION = 1;
+
+    /** */
+    private static final int HEADER_SIZE = 24;
+    /** */
+    private static final int SLOT_SIZE = 16;
+
+    /** */
+    private static final int OFFSET_SLOT_COUNT = 8;
+    /** */
+    private static final int OFFSET_COUNT = 12;
+    /** */
+    private static final int OFFSET_TOMBSTONES = 16;
+
+    /** */
+    private static final long EMPTY = 0;
+    /** */
+    private static final long TOMBSTONE = -1;
+
+    /** 最小のスロット数 */
+    static final int MIN_SLOT_COUNT = 256;
+
+    /** */
+    private final File file;
+
+    /** */
+    private MappedByteBuffer buffer;
+
+    /** 2 のべき乗 */
+    private int slotCount;
+
+    /** 有効なエントリ数 */
+    private int count;
+
+    /** 削除済みスロット数 */
+    private int tombstones;
+
+    /** */
+    private DiskCacheIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 既存のインデックスを開きます。
+     *
+     * @return null when the file does not exist or is broken
+     */
+    static DiskCacheIndex open(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DiskCacheIndex index = new DiskCacheIndex(file);
+        index.map(file.length());
+        MappedByteBuffer buffer = index.buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+        int slotCount = buffer.getInt(OFFSET_SLOT_COUNT);
+        if (slotCount < MIN_SLOT_COUNT || Integer.bitCount(slotCount) != 1 ||
+            buffer.capacity() != HEADER_SIZE + (long) slotCount * SLOT_SIZE) {
+            return null;
+        }
+        index.slotCount = slotCount;
+        index.count = buffer.getInt(OFFSET_COUNT);
+        index.tombstones = buffer.getInt(OFFSET_TOMBSTONES);
+        return index;
+    }
+
+    /**
+     * 空のインデックスを作成します。既存のファイルは上書きします。
+     *
+     * @param expected 見込みのエントリ数
+     */
+    static DiskCacheIndex create(File file, int expected) throws IOException {
+        DiskCacheIndex index = new DiskCacheIndex(file);
+        index.reset(slotCountFor(expected));
+        return index;
+    }
+
+    /** 負荷率 1/2 以下になるスロット数 */
+    private static int slotCountFor(int expected) {
+        int slotCount = MIN_SLOT_COUNT;
+        while (slotCount < expected * 2) {
+            slotCount <<= 1;
+        }
+        return slotCount;
+    }
+
+    /** */
+    private void map(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != length) {
+                raf.setLength(length);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            // マップはチャネルを閉じても有効
+            raf.close();
+        }
+    }
+
+    /** すべてのスロットを空にして slotCount で作り直します。 */
+    private void reset(int slotCount) throws IOException {
+        map(HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        for (int i = 0; i < slotCount; i++) {
+            buffer.putLong(slotOffset(i), EMPTY);
+            buffer.putLong(slotOffset(i) + 8, 0);
+        }
+        this.slotCount = slotCount;
+        this.count = 0;
+        this.tombstones = 0;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(OFFSET_SLOT_COUNT, slotCount);
+        buffer.putInt(OFFSET_COUNT, 0);
+        buffer.putInt(OFFSET_TOMBSTONES, 0);
+    }
+
+    /** */
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * {@link DiskCache#toName(String)} (MD5 の hex) の先頭 64bit を hash とします。
+     */
+    static long hash(String name) {
+        long hash = 0;
+        for (int i = 0; i < 16; i++) {
+            hash = (hash << 4) | Character.digit(name.charAt(i), 16);
+        }
+        if (hash == EMPTY || hash == TOMBSTONE) {
+            hash = 1;
+        }
+        return hash;
+    }
+
+    /** */
+    private int firstSlot(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & (slotCount - 1);
+    }
+
+    /** @return slot or -1 */
+    private int find(long hash) {
+        int slot = firstSlot(hash);
+        for (int i = 0; i < slotCount; i++) {
+            long value = buffer.getLong(slotOffset(slot));
+            if (value == hash) {
+                return slot;
+            } else if (value == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & (slotCount - 1);
+        }
+        return -1;
+    }
+
+    /** */
+    synchronized boolean contains(String name) {
+        return find(hash(name)) != -1;
+    }
+
+    /** @return -1 when not found */
+    synchronized long getLength(String name) {
+        int slot = find(hash(name));
+        return slot == -1 ? -1 : buffer.getLong(slotOffset(slot) + 8);
+    }
+
+    /**
+     * 追加もしくは更新します。
+     *
+     * @return false when the table needs to be rebuilt by {@link #rebuild(Iterable)}
+     */
+    synchronized boolean put(String name, long length) {
+        long hash = hash(name);
+        int slot = find(hash);
+        if (slot != -1) {
+            buffer.putLong(slotOffset(slot) + 8, length);
+            return true;
+        }
+        if ((count + tombstones + 1) * 4 > slotCount * 3) {
+            return false;
+        }
+        slot = firstSlot(hash);
+        while (true) {
+            long value = buffer.getLong(slotOffset(slot));
+            if (value == EMPTY || value == TOMBSTONE) {
+                if (value == TOMBSTONE) {
+                    buffer.putInt(OFFSET_TOMBSTONES, --tombstones);
+                }
+                buffer.putLong(slotOffset(slot) + 8, length);
+                buffer.putLong(slotOffset(slot), hash);
+                buffer.putInt(OFFSET_COUNT, ++count);
+                return true;
+            }
+            slot = (slot + 1) & (slotCount - 1);
+        }
+    }
+
+    /** */
+    synchronized void remove(String name) {
+        int slot = find(hash(name));
+        if (slot != -1) {
+            buffer.putLong(slotOffset(slot), TOMBSTONE);
+            buffer.putInt(OFFSET_COUNT, --count);
+            buffer.putInt(OFFSET_TOMBSTONES, ++tombstones);
+        }
+    }
+
+    /**
+     * 与えられたエントリだけを持つように作り直します。
+     *
+     * @param entries name と length の組
+     */
+    synchronized void rebuild(Iterable<? extends Entry> entries) throws IOException {
+        int size = 0;
+        for (@SuppressWarnings("unused") Entry entry : entries) {
+            size++;
+        }
+        reset(slotCountFor(size));
+        for (Entry entry : entries) {
+            put(entry.getName(), entry.getLength());
+        }
+    }
+
+    /** ディスクに書き出します。 */
+    synchronized void force() {
+        buffer.force();
+    }
+
+    /** */
+    synchronized int size() {
+        return count;
+    }
+
+    /** */
+    File getFile() {
+        return file;
+    }
+
+    /** {@link #rebuild(Iterable)} に渡すエントリ */
+    interface Entry {
+        /** */
+        String getName();
+        /** */
+        long getLength();
+    }
+}
@@ -12,19 +12,14 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.LinearGradient;
-import android.graphics.Matrix;
-import android.graphics.Paint;
-import android.graphics.PorterDuff.Mode;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
-import android.graphics.Shader.TileMode;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.Gallery;
 
+import org.klab.iphoroid.widget.support.ImageRequest;
+import org.klab.iphoroid.widget.support.ImageTransformation;
+
 
 /**
  * CoverFlow と画像を関連付けるためのアダプターです。
@@ -97,50 +92,20 @@ public abstract class CoverFlowImageAdapterBase<T> extends BaseAdapter {
 
     /**
      * 画像の下部に反射エフェクトを付けた Bitmap を生成します。
+     * UI スレッドで毎回行うと重いので、{@link ImageRequest#setTransformation(ImageTransformation)} に
+     * {@link ImageTransformation.Reflection} を指定して読み込み時に加工しておくこともできます。
      *
      * @param src 元となる画像。
      * @param gap 元画像と反射エフェクト間の距離。
      * @return 成功時は Bitmap インスタンス。それ以外は null 参照。
      */
     protected Bitmap makeReflectedImage(Bitmap src, int gap) {
-        Matrix matrix = new Matrix();
-        matrix.preScale(1, -1);
-
-        int width = src.getWidth();
-        int height = src.getHeight();
-        int destHeight = height + height / 2;
-        Bitmap effect = Bitmap.createBitmap(src, 0, height / 2, width, height / 2, matrix, false);
-//        Bitmap dest = Bitmap.createBitmap(width, destHeight, Config.ARGB_4444);
-        Bitmap dest = Bitmap.createBitmap(width, destHeight, Config.ARGB_8888);
-        Canvas canvas = new Canvas(dest);
-
-        canvas.drawBitmap(src, 0, 0, null);
-        canvas.drawRect(0, height, width, height + gap, new Paint());
-        canvas.drawBitmap(effect, 0, height + gap, null);
-
-        Paint paint = new Paint();
-        paint.setShader(new LinearGradient(0, height, 0, destHeight + gap, 0x70ffffff, 0x00ffffff, TileMode.CLAMP));
-        paint.setXfermode(new PorterDuffXfermode(Mode.DST_IN));
-        canvas.drawRect(0, height, width, destHeight + gap, paint);
-
-        if (effect != null && !effect.isRecycled()) {
-        	effect.recycle();
-        }
-
-        return dest;
+        return new ImageTransformation.Reflection(gap).transform(src);
     }
 
-    /** */
+    /** @see ImageTransformation.Resize */
     protected Bitmap makeResizedImage(Bitmap src, int width, int height) {
-        Matrix matrix = new Matrix();
-        matrix.preScale(1, -1);
-
-//        Bitmap dest = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-        Bitmap dest = Bitmap.createBitmap(width, height, Config.RGB_565);
-        Canvas canvas = new Canvas(dest);
-        canvas.drawBitmap(src, new Rect(0, 0, src.getWidth(), src.getHeight()), new Rect(0, 0, width, height), null);
-
-        return dest;
+        return new ImageTransformation.Resize(width, height, Config.RGB_565).transform(src);
     }
 
     /**
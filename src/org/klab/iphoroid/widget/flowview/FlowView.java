@@ -492,6 +492,7 @@ Log.w("FlowView", "scroll: " + getScrollX() + ", " + getScrollY());
         }
         requestLayout();
         setVisibleView(mCurrentBufferIndex, false);
+        fireScroll();
         if (mIndicator != null) {
             mIndicator.onSwitched(mLoadedViews.get(mCurrentBufferIndex), mCurrentAdapterIndex);
         }
@@ -561,6 +562,7 @@ Log.w("FlowView", "scroll: " + getScrollX() + ", " + getScrollY());
 
         requestLayout();
         setVisibleView(mCurrentBufferIndex, true);
+        fireScroll();
         if (mIndicator != null) {
             mIndicator.onSwitched(mLoadedViews.get(mCurrentBufferIndex), mCurrentAdapterIndex);
         }
@@ -625,6 +627,15 @@ Log.w("FlowView", "scroll: " + getScrollX() + ", " + getScrollY());
     /** */
     private int scrollState = OnScrollListener.SCROLL_STATE_IDLE;
 
+    /**
+     * 現在のページを {@link OnScrollListener#onScroll(AdapterView, int, int, int)} に通知します。
+     */
+    protected void fireScroll() {
+        if (onScrollListener != null && mAdapter != null) {
+            onScrollListener.onScroll(this, mCurrentAdapterIndex, 1, mAdapter.getCount());
+        }
+    }
+
     /** */
     protected void fireScrollStateChanged(int scrollState) {
         if (onScrollListener != null) {
@@ -105,6 +105,7 @@ public class ScrollDetectableGallery extends Gallery {
             boolean more = scroller.computeScrollOffset();
 
             if (more) {
+                fireScroll();
                 post(this);
             } else {
                 endFling(true);
@@ -112,6 +113,15 @@ public class ScrollDetectableGallery extends Gallery {
         }
     }    
 
+    /**
+     * 表示されている位置を {@link OnScrollListener#onScroll(android.widget.AdapterView, int, int, int)} に通知します。
+     */
+    protected void fireScroll() {
+        if (onScrollListener != null) {
+            onScrollListener.onScroll(this, getFirstVisiblePosition(), getChildCount(), getCount());
+        }
+    }
+
     /** */
     protected void fireScrollStateChanged(int scrollState) {
         if (this.scrollState != scrollState) {
@@ -130,6 +140,8 @@ public class ScrollDetectableGallery extends Gallery {
     @Override
     public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
         fireScrollStateChanged(OnScrollListener.SCROLL_STATE_TOUCH_SCROLL);
-        return super.onScroll(e1, e2, distanceX, distanceY);
+        boolean result = super.onScroll(e1, e2, distanceX, distanceY);
+        fireScroll();
+        return result;
     }
 }
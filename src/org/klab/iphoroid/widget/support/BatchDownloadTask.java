@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * 複数のパラメータをまとめて 1 つのタスクでダウンロードします。
+ * <p>
+ * {@link #execute(Object...)} に渡したすべてのパラメータを {@link #downloadItem(Object)} で
+ * 最大 {@link #setParallelism(int)} 件ずつ並列にダウンロードし、結果は渡した順のリストで
+ * {@link #setResult(Object)} します。失敗したものは null になります。
+ * 1 件終わるたびに UI スレッドで {@link #onItem(int, Object, int, int)} が呼ばれるので、
+ * 全部終わるのを待たずに表示できます。{@link #onItem(int, Object, int, int)} は必ず
+ * {@link #setResult(Object)} より先に呼ばれます。
+ * そのため結果は {@link ResultCache} にはキャッシュしません ({@link #getResultKey(Object...)} は常に null)。
+ * </p>
+ * <p>
+ * {@link DownloadGate} にはタスクを 1 つの待ち行列として 1 件ずつ通すので、同時にダウンロードする数は
+ * {@link #setParallelism(int)} と {@link DownloadGate} の制限の小さい方です。
+ * {@link #getEstimatedSize(Object)} が分からない (0 の) 項目も {@link #setParallelism(int)} 件まで並列にします。
+ * </p>
+ * <pre>
+ *     new BatchDownloadTask&lt;String, Entry&gt;(context, "Loading...") {
+ *         public Entry downloadItem(String url) throws Exception {
+ *             return api.getEntry(url);
+ *         }
+ *         protected void onItem(int index, Entry entry, int completed, int total) {
+ *             adapter.set(index, entry);
+ *         }
+ *         public void setResult(List&lt;Entry&gt; entries) {
+ *         }
+ *     }.execute(urls);
+ * </pre>
+ */
+public abstract class BatchDownloadTask<Param, Item> extends DownloadTask<Param, List<Item>> {
+
+    /** 並列にダウンロードする補助のスレッド, タスクのスレッドも 1 つとして働く */
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 16, 30, TimeUnit.SECONDS,
+                                                                              new SynchronousQueue<Runnable>(),
+                                                                              new ThreadFactory() {
+        private final AtomicInteger id = new AtomicInteger();
+        public Thread newThread(final Runnable runnable) {
+            return new Thread("BatchDownload-" + id.incrementAndGet()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            };
+        }
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    /** onPostExecute() より先に届くように AsyncTask と同じく直接 post する */
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** 同時にダウンロードする数 */
+    private int parallelism = 3;
+
+    /**
+     * @param context for dialog
+     */
+    public BatchDownloadTask(Context context, String message) {
+        super(context, message);
+    }
+
+    /**
+     * {@link #execute(Object...)} の前に呼んでください。
+     * @param parallelism 同時にダウンロードする数
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism < 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 1 件のデータ量の見積もり [byte] です。{@link DownloadGate} に 1 件ずつ渡します。
+     * 大きなデータを扱う場合は上書きしてください。
+     *
+     * @return 0 when unknown
+     */
+    protected long getEstimatedSize(Param param) {
+        return 0;
+    }
+
+    /** 1 件ずつ {@link DownloadGate} を通すので、タスク全体では通さない */
+    @Override
+    final boolean isGated() {
+        return false;
+    }
+
+    /** {@link #onItem(int, Object, int, int)} を呼ばずに結果を返すことになるのでキャッシュしない */
+    @Override
+    protected final String getResultKey(Param... params) {
+        return null;
+    }
+
+    /**
+     * 1 件ダウンロードします。複数のスレッドから同時に呼ばれます。
+     *
+     * @return null when failed
+     */
+    public abstract Item downloadItem(Param param) throws Exception;
+
+    /**
+     * UI スレッドで、1 件終わるたびに呼ばれます。終わった順なので index は順不同です。
+     *
+     * @param index パラメータの位置
+     * @param item null when failed
+     * @param completed 終わった数
+     * @param total 全体の数
+     */
+    protected void onItem(int index, Item item, int completed, int total) {
+    }
+
+    /**
+     * すべてのパラメータを並列にダウンロードし、渡した順のリストを返します。
+     * キャンセルされた場合は残りをダウンロードせず、その分は null です。
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public final List<Item> download(final Param... params) throws Exception {
+        final Object[] results = new Object[params.length];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        int helpers = Math.min(parallelism, params.length) - 1;
+        final CountDownLatch latch = new CountDownLatch(Math.max(0, helpers));
+        for (int i = 0; i < helpers; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        work(params, results, next, completed);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        work(params, results, next, completed);
+        latch.await();
+Log.d("BatchDownloadTask", "done: " + completed.get() + "/" + params.length);
+
+        List<Item> items = new ArrayList<Item>(params.length);
+        for (Object result : results) {
+            items.add((Item) result);
+        }
+        return items;
+    }
+
+    /** 次のパラメータを取っては {@link DownloadGate} を通してダウンロードし、結果を入れます。 */
+    private void work(final Param[] params, Object[] results, AtomicInteger next, AtomicInteger completed) {
+        DownloadGate gate = DownloadGate.getInstance();
+        int i;
+        while (!isCancelled() && (i = next.getAndIncrement()) < params.length) {
+            DownloadGate.Ticket ticket;
+            try {
+                ticket = gate.acquire(this, getEstimatedSize(params[i]), parallelism); // このタスクで 1 つの待ち行列
+            } catch (InterruptedException e) {
+Log.w("BatchDownloadTask", "interrupted while waiting");
+                return;
+            }
+            Item item = null;
+            try {
+                if (isCancelled()) {
+                    return;
+                }
+                item = downloadItem(params[i]);
+            } catch (Exception e) {
+Log.e("BatchDownloadTask", params[i] + ": " + e.toString());
+            } finally {
+                gate.release(ticket);
+            }
+            results[i] = item;
+
+            final int index = i;
+            final Item result = item;
+            final int count = completed.incrementAndGet();
+            handler.post(new Runnable() {
+                public void run() {
+                    if (!isCancelled()) {
+                        onItem(index, result, count, params.length);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.view.View;
+import android.view.ViewGroup;
+
+
+/**
+ * 表示するサイズに合わせて縮小しながら Bitmap をデコードするユーティリティです。
+ * <p>
+ * まず inJustDecodeBounds で画像のサイズだけを読み、
+ * 要求されたサイズを下回らない範囲で一番大きな inSampleSize (2 のべき乗) でデコードします。
+ * 48dp のサムネイルに数百万画素の写真をそのまま読み込むことがなくなり、
+ * メモリもデコード時間も大幅に減ります。
+ * </p>
+ * <p>
+ * JPEG のように透過の無い画像は {@link Bitmap.Config#RGB_565} (2 byte/pixel) でデコードします。
+ * 判定はサイズを読む時の MIME type (分からなければバイト列の先頭) で行います。
+ * 色の階調が必要な場合は {@link #setPreferRgb565(boolean)} もしくは引数で ARGB_8888 にできます。
+ * </p>
+ *
+ * @see org.klab.iphoroid.widget.coverflow.CoverFlowImageAdapterBase#decodeBitmap(int)
+ */
+public final class BitmapDecoder {
+
+    /** 透過の無い画像を RGB_565 でデコードするかどうかの既定値 */
+    private static volatile boolean preferRgb565 = true;
+
+    /** */
+    private BitmapDecoder() {
+    }
+
+    /** @param preferRgb565 false で常に BitmapFactory の既定 (ARGB_8888) でデコードする */
+    public static void setPreferRgb565(boolean preferRgb565) {
+        BitmapDecoder.preferRgb565 = preferRgb565;
+    }
+
+    /** */
+    public static boolean isPreferRgb565() {
+        return preferRgb565;
+    }
+
+    /** 透過の無い形式かどうか, 今のところ JPEG のみ */
+    public static boolean isOpaque(String mimeType) {
+        return "image/jpeg".equalsIgnoreCase(mimeType) || "image/jpg".equalsIgnoreCase(mimeType);
+    }
+
+    /** 先頭が JPEG の SOI (FF D8 FF) かどうか */
+    public static boolean isJpeg(byte[] data) {
+        return data != null && data.length > 3 &&
+               (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8 && (data[2] & 0xff) == 0xff;
+    }
+
+    /** 加工後の画像の config, アルファの無い画像は RGB_565 のままにする */
+    static Bitmap.Config configOf(Bitmap source) {
+        return source.hasAlpha() ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+    }
+
+    /** サイズを読んだ後の options に縮小率と config を設定します。 */
+    private static void prepare(BitmapFactory.Options options, boolean opaque, boolean allowRgb565, int reqWidth, int reqHeight) {
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        if (allowRgb565 && opaque) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inDither = true;
+        }
+    }
+
+    /**
+     * 縮小率を求めます。
+     *
+     * @param srcWidth 元画像の幅
+     * @param srcHeight 元画像の高さ
+     * @param reqWidth 表示する幅, 0 以下で縮小しない
+     * @param reqHeight 表示する高さ, 0 以下で縮小しない
+     * @return 縮小後の幅と高さが両方とも要求サイズ以上になる最大の 2 のべき乗
+     */
+    public static int computeSampleSize(int srcWidth, int srcHeight, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (srcWidth <= 0 || srcHeight <= 0 || reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        while (srcWidth / (sampleSize * 2) >= reqWidth && srcHeight / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * ファイルを縮小してデコードします。
+     *
+     * @param reqWidth 0 以下で縮小しない
+     * @param reqHeight 0 以下で縮小しない
+     * @return null when the file can not be decoded
+     */
+    public static Bitmap decodeFile(String path, int reqWidth, int reqHeight) {
+        return decodeFile(path, reqWidth, reqHeight, preferRgb565);
+    }
+
+    /**
+     * ファイルを縮小してデコードします。
+     *
+     * @param reqWidth 0 以下で縮小しない
+     * @param reqHeight 0 以下で縮小しない
+     * @param allowRgb565 false で透過の無い画像も RGB_565 にしない
+     * @return null when the file can not be decoded
+     */
+    public static Bitmap decodeFile(String path, int reqWidth, int reqHeight, boolean allowRgb565) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        prepare(options, isOpaque(options.outMimeType), allowRgb565, reqWidth, reqHeight);
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /**
+     * バイト列を縮小してデコードします。
+     *
+     * @param reqWidth 0 以下で縮小しない
+     * @param reqHeight 0 以下で縮小しない
+     * @return null when the data can not be decoded
+     */
+    public static Bitmap decodeByteArray(byte[] data, int reqWidth, int reqHeight) {
+        return decodeByteArray(data, reqWidth, reqHeight, preferRgb565);
+    }
+
+    /**
+     * バイト列を縮小してデコードします。
+     *
+     * @param reqWidth 0 以下で縮小しない
+     * @param reqHeight 0 以下で縮小しない
+     * @param allowRgb565 false で透過の無い画像も RGB_565 にしない
+     * @return null when the data can not be decoded
+     */
+    public static Bitmap decodeByteArray(byte[] data, int reqWidth, int reqHeight, boolean allowRgb565) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        boolean opaque = options.outMimeType != null ? isOpaque(options.outMimeType) : isJpeg(data);
+        prepare(options, opaque, allowRgb565, reqWidth, reqHeight);
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * view が表示されるサイズを返します。
+     * レイアウト済みなら実際のサイズ、まだなら LayoutParams に指定されたサイズ (px) を使います。
+     * WRAP_CONTENT の辺は画像で決まる (使いまわされた view では前の画像のサイズになっている) ので 0 です。
+     *
+     * @return { width, height }, 分からない場合は 0
+     */
+    public static int[] getTargetSize(View view) {
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        if (params == null) {
+            return new int[] { Math.max(0, view.getWidth()), Math.max(0, view.getHeight()) };
+        }
+        return new int[] { getTargetSize(view.getWidth(), params.width), getTargetSize(view.getHeight(), params.height) };
+    }
+
+    /**
+     * @param measured レイアウト済みのサイズ
+     * @param specified LayoutParams のサイズ
+     * @return 0 when unknown or WRAP_CONTENT
+     */
+    private static int getTargetSize(int measured, int specified) {
+        if (specified == ViewGroup.LayoutParams.WRAP_CONTENT) {
+            return 0;
+        }
+        if (measured > 0) { // MATCH_PARENT (FILL_PARENT) か固定サイズ
+            return measured;
+        }
+        return Math.max(0, specified);
+    }
+}
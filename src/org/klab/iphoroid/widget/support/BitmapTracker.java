@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+
+/**
+ * どの Bitmap がいくつの ImageView で表示されているかを記録します。
+ * <p>
+ * ImageView に Bitmap を設定した時 ({@link #bind(ImageView, Bitmap)}) と
+ * 外した時 ({@link #unbind(ImageView)}) に数を増減するので、
+ * {@link #isUsed(Bitmap)} はビューツリーを辿らずに O(1) で判定できます。
+ * GC された ImageView の分は ReferenceQueue で検知して減らします。
+ * </p>
+ * {@link HasImage.Util}、{@link ImageRequest} が設定するものは自動的に記録されます。
+ * {@link ImageCache#getImage(String)} や {@link SimpleImageDownloadTask} でアプリに渡した Bitmap は
+ * どこに表示されるか分からないので {@link #isRecyclable(Bitmap)} にならず、recycle() されません (GC に任せます)。
+ */
+public abstract class BitmapTracker {
+
+    /** ImageView と、それに設定されている Bitmap */
+    private static class Binding extends WeakReference<ImageView> {
+        /** */
+        Bitmap bitmap;
+        /** */
+        Binding(ImageView imageView, Bitmap bitmap) {
+            super(imageView, queue);
+            this.bitmap = bitmap;
+        }
+    }
+
+    /** Bitmap ごとの表示している ImageView の数, Bitmap#equals() は使わない */
+    private static final Map<Bitmap, int[]> counts = new IdentityHashMap<Bitmap, int[]>();
+
+    /** 値の Binding も ImageView を弱参照するだけなので ImageView はリークしない */
+    private static final Map<ImageView, Binding> bindings = new WeakHashMap<ImageView, Binding>();
+
+    /**
+     * 一度でも表示された Bitmap, true はライブラリが記録した ImageView にだけ設定されたもの、
+     * false はアプリに渡したもの。Bitmap は equals() を上書きしていないので同一性で比較される
+     */
+    private static final Map<Bitmap, Boolean> owners = new WeakHashMap<Bitmap, Boolean>();
+
+    /** GC された ImageView の Binding */
+    private static final ReferenceQueue<ImageView> queue = new ReferenceQueue<ImageView>();
+
+    /**
+     * imageView に bitmap が設定されたことを記録します。前に設定されていたものの分は減らします。
+     *
+     * @param bitmap null は {@link #unbind(ImageView)} と同じ
+     */
+    public static synchronized void bind(ImageView imageView, Bitmap bitmap) {
+        expunge();
+        Binding binding = bindings.get(imageView);
+        if (binding != null) {
+            if (binding.bitmap == bitmap) {
+                return;
+            }
+            decrement(binding.bitmap);
+            if (bitmap == null) {
+                bindings.remove(imageView);
+                binding.clear();
+                return;
+            }
+            binding.bitmap = bitmap;
+        } else if (bitmap != null) {
+            bindings.put(imageView, new Binding(imageView, bitmap));
+        } else {
+            return;
+        }
+        int[] count = counts.get(bitmap);
+        if (count == null) {
+            counts.put(bitmap, new int[] { 1 });
+        } else {
+            count[0]++;
+        }
+        if (!owners.containsKey(bitmap)) {
+            owners.put(bitmap, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * bitmap を記録されない所 (アプリ) に渡したことを記録します。以後 recycle() されません。
+     */
+    static synchronized void handOut(Bitmap bitmap) {
+        if (bitmap != null) {
+            owners.put(bitmap, Boolean.FALSE);
+        }
+    }
+
+    /**
+     * imageView から Bitmap が外された (ローディング画像等に変わった) ことを記録します。
+     */
+    public static void unbind(ImageView imageView) {
+        bind(imageView, null);
+    }
+
+    /**
+     * bitmap が表示中の ImageView に設定されているかどうかを返します。
+     */
+    public static synchronized boolean isUsed(Bitmap bitmap) {
+        expunge();
+        return counts.containsKey(bitmap);
+    }
+
+    /**
+     * bitmap を recycle() して良いかどうかを返します。
+     * ライブラリが記録した ImageView にだけ設定され、今はどれにも設定されていないものだけが true です。
+     * 一度も設定されていないものや、アプリに渡したものは表示されているかどうか分からないので false です。
+     */
+    public static synchronized boolean isRecyclable(Bitmap bitmap) {
+        expunge();
+        return !counts.containsKey(bitmap) && Boolean.TRUE.equals(owners.get(bitmap));
+    }
+
+    /** 記録されている Bitmap の数 */
+    public static synchronized int size() {
+        expunge();
+        return counts.size();
+    }
+
+    /** */
+    private static void decrement(Bitmap bitmap) {
+        int[] count = counts.get(bitmap);
+        if (count != null && --count[0] <= 0) {
+            counts.remove(bitmap);
+        }
+    }
+
+    /** GC された ImageView の分を減らします。 */
+    private static void expunge() {
+        Binding binding;
+        while ((binding = (Binding) queue.poll()) != null) {
+            if (binding.bitmap != null) {
+                decrement(binding.bitmap);
+                binding.bitmap = null;
+            }
+        }
+    }
+}
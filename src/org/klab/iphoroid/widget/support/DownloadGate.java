@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.util.Log;
+
+
+/**
+ * {@link DownloadTask} の同時実行を制限するゲートです。
+ * <p>
+ * 画面 (Context) ごとに 1 つずつ直列にするのではなく、全体で
+ * <ul>
+ * <li>同時に実行する数 ({@link #setMaxParallel(int)})</li>
+ * <li>実行中のタスクの見積もりサイズの合計 ({@link #setMaxBytes(long)}, {@link DownloadTask#getEstimatedSize()})</li>
+ * </ul>
+ * を制限します。待っているタスクは画面ごとの待ち行列に入り、画面を順番に 1 つずつ受け入れるので、
+ * たくさん要求する画面があっても他の画面のタスクが待たされ続けることはありません。
+ * 同じ画面の中では要求した順です。
+ * </p>
+ * 見積もりが上限より大きいタスクも、他に実行中のものが無ければ受け入れます。
+ * 見積もりが分からない (0 の) タスクは、以前の synchronized (context) と同じく画面ごとに 1 つずつ実行します
+ * (メモリ不足対策, 大きさの分からないものを同じ画面でいくつも同時に読み込まない)。
+ * {@link #acquire(Object, long, int)} で owner ごとに同時に実行する数を指定することもできます。
+ * thread safe です。
+ */
+public class DownloadGate {
+
+    /** */
+    private static DownloadGate instance;
+
+    /** */
+    public static synchronized DownloadGate getInstance() {
+        if (instance == null) {
+            instance = new DownloadGate();
+        }
+        return instance;
+    }
+
+    /** {@link #acquire(Object, long)} で受け入れられた実行権 */
+    public static class Ticket {
+        /** 画面, null も 1 つの画面として扱う */
+        final Object owner;
+        /** [byte] */
+        final long bytes;
+        /** 同じ owner で見積もりの分からないものを同時に実行する数 */
+        final int maxUnknown;
+        /** */
+        boolean admitted;
+        /** */
+        Ticket(Object owner, long bytes, int maxUnknown) {
+            this.owner = owner;
+            this.bytes = bytes;
+            this.maxUnknown = maxUnknown;
+        }
+    }
+
+    /** 画面ごとの待ち行列 */
+    private static class Line {
+        /** */
+        final Object owner;
+        /** */
+        final LinkedList<Ticket> tickets = new LinkedList<Ticket>();
+        /** */
+        Line(Object owner) {
+            this.owner = owner;
+        }
+    }
+
+    /** 同時に実行する数 */
+    private int maxParallel = 3;
+
+    /** 実行中の見積もりサイズの合計の上限 [byte] */
+    private long maxBytes = Runtime.getRuntime().maxMemory() / 8;
+
+    /** 実行中の数 */
+    private int running;
+
+    /** 実行中の見積もりサイズの合計 [byte] */
+    private long runningBytes;
+
+    /** 見積もりの分からないタスクを実行中の画面と、その数 */
+    private final Map<Object, int[]> unknownRunning = new IdentityHashMap<Object, int[]>();
+
+    /** 待っている画面, 先頭から順に受け入れ、受け入れた画面は最後に回す */
+    private final LinkedList<Line> lines = new LinkedList<Line>();
+
+    /** */
+    private DownloadGate() {
+    }
+
+    /** */
+    public synchronized int getMaxParallel() {
+        return maxParallel;
+    }
+
+    /** @param maxParallel 同時に実行する数 */
+    public synchronized void setMaxParallel(int maxParallel) {
+        if (maxParallel < 1) {
+            throw new IllegalArgumentException("maxParallel < 1");
+        }
+        this.maxParallel = maxParallel;
+        admit();
+    }
+
+    /** [byte] */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** @param maxBytes 実行中のタスクの見積もりサイズの合計の上限 [byte] */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        admit();
+    }
+
+    /** 実行中の数 */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /** 待っている数 */
+    public synchronized int getWaiting() {
+        int count = 0;
+        for (Line line : lines) {
+            count += line.tickets.size();
+        }
+        return count;
+    }
+
+    /**
+     * 実行できるまで待ちます。終わったら必ず {@link #release(Ticket)} してください。
+     * バックグラウンドのスレッドから呼んでください。
+     *
+     * @param owner 画面, 公平に受け入れる単位 (同一性で区別します)
+     * @param bytes 見積もりサイズ [byte], 分からなければ 0 (同じ画面の見積もりの分からないものと直列になる)
+     * @throws InterruptedException 待っている間に割り込まれた (AsyncTask#cancel(true) 等), 実行権は得ていません
+     */
+    public Ticket acquire(Object owner, long bytes) throws InterruptedException {
+        return acquire(owner, bytes, 1);
+    }
+
+    /**
+     * 実行できるまで待ちます。終わったら必ず {@link #release(Ticket)} してください。
+     * バックグラウンドのスレッドから呼んでください。
+     *
+     * @param owner 公平に受け入れる単位 (同一性で区別します)
+     * @param bytes 見積もりサイズ [byte], 分からなければ 0
+     * @param maxUnknown 同じ owner で見積もりの分からないものを同時に実行する数
+     * @throws InterruptedException 待っている間に割り込まれた, 実行権は得ていません
+     * @see BatchDownloadTask
+     */
+    public synchronized Ticket acquire(Object owner, long bytes, int maxUnknown) throws InterruptedException {
+        if (maxUnknown < 1) {
+            throw new IllegalArgumentException("maxUnknown < 1");
+        }
+        Ticket ticket = new Ticket(owner, bytes, maxUnknown);
+        lineOf(owner).tickets.addLast(ticket);
+        admit();
+        try {
+            while (!ticket.admitted) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            if (ticket.admitted) {
+                release(ticket);
+            } else {
+                remove(ticket);
+            }
+            throw e;
+        }
+        return ticket;
+    }
+
+    /**
+     * 実行権を返します。
+     */
+    public synchronized void release(Ticket ticket) {
+        if (!ticket.admitted) {
+            return;
+        }
+        ticket.admitted = false;
+        running--;
+        runningBytes -= ticket.bytes;
+        if (ticket.bytes <= 0) {
+            int[] count = unknownRunning.get(ticket.owner);
+            if (count != null && --count[0] <= 0) {
+                unknownRunning.remove(ticket.owner);
+            }
+        }
+        admit();
+    }
+
+    /** owner の待ち行列, 無ければ最後に追加します。 */
+    private Line lineOf(Object owner) {
+        for (Line line : lines) {
+            if (line.owner == owner) {
+                return line;
+            }
+        }
+        Line line = new Line(owner);
+        lines.addLast(line);
+        return line;
+    }
+
+    /** 待ち行列から取り除きます。 */
+    private void remove(Ticket ticket) {
+        for (Iterator<Line> i = lines.iterator(); i.hasNext();) {
+            Line line = i.next();
+            if (line.owner == ticket.owner) {
+                line.tickets.remove(ticket);
+                if (line.tickets.isEmpty()) {
+                    i.remove();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 空きがあれば画面を順番に 1 つずつ受け入れます。
+     * 先頭のタスクが大きすぎる画面、見積もりの分からないタスクを既に上限まで実行している画面は飛ばして、次の画面を見ます。
+     */
+    private void admit() {
+        boolean admitted = false;
+        while (running < maxParallel) {
+            Line found = null;
+            for (Line line : lines) {
+                Ticket ticket = line.tickets.getFirst();
+                if (ticket.bytes <= 0) {
+                    int[] count = unknownRunning.get(line.owner);
+                    if (count != null && count[0] >= ticket.maxUnknown) {
+                        continue;
+                    }
+                }
+                if (running == 0 || runningBytes + ticket.bytes <= maxBytes) {
+                    found = line;
+                    break;
+                }
+            }
+            if (found == null) {
+                break;
+            }
+            Ticket ticket = found.tickets.removeFirst();
+            lines.remove(found);
+            if (!found.tickets.isEmpty()) {
+                lines.addLast(found); // 次は他の画面
+            }
+            ticket.admitted = true;
+            running++;
+            runningBytes += ticket.bytes;
+            if (ticket.bytes <= 0) {
+                int[] count = unknownRunning.get(ticket.owner);
+                if (count == null) {
+                    unknownRunning.put(ticket.owner, new int[] { 1 });
+                } else {
+                    count[0]++;
+                }
+            }
+            admitted = true;
+        }
+        if (admitted) {
+Log.d("DownloadGate", "running: " + running + "/" + maxParallel + ", bytes: " + runningBytes + "/" + maxBytes + ", waiting: " + getWaiting());
+            notifyAll();
+        }
+    }
+}
@@ -23,7 +23,7 @@ public abstract class DownloadTask<Param, Result> extends AsyncTask<Param, Void,
 
     /** default progress is dialog */
     private ProgressDialog progressDialog;
-    /** 2011.7.27 added by jun */
+    /** 2011.7.27 added by jun, {@link DownloadGate} で画面を区別する */
     private Context mContext;
 
     /**
@@ -63,30 +63,140 @@ try {
         showProgress();
     }
 
+    /**
+     * タスク全体を {@link DownloadGate} の 1 件として実行するかどうか。
+     * 中で複数並列にダウンロードするタスクは false にして、それぞれで {@link DownloadGate} を通してください。
+     */
+    boolean isGated() {
+        return true;
+    }
+
+    /**
+     * 実行中のデータ量の見積もり [byte] です。{@link DownloadGate} が同時に実行するタスクを決めるのに使います。
+     * 大きなデータを扱うタスクは上書きしてください。
+     * 分からない (0 の) タスクは、以前と同じく同じ画面の中では 1 つずつ実行されます。
+     *
+     * @return 0 when unknown
+     */
+    protected long getEstimatedSize() {
+        return 0;
+    }
+
+    /**
+     * 結果を {@link ResultCache} にキャッシュする時間 [msec] です。
+     * 何度開いても同じ結果で良い画面のタスクは上書きしてください。
+     *
+     * @return 0 以下でキャッシュしない (既定)
+     */
+    protected long getResultTtl() {
+        return 0;
+    }
+
+    /**
+     * {@link ResultCache} のキーです。既定はタスクのクラスとパラメータの toString() です。
+     *
+     * @return null でキャッシュしない
+     */
+    protected String getResultKey(Param... params) {
+        return getResultTtl() > 0 ? ResultCache.keyOf(getClass(), params) : null;
+    }
+
+    /**
+     * {@link ResultCache} での結果のサイズ [byte] です。
+     * 既定は {@link #getEstimatedSize()}、0 の場合は 1KB とします。
+     */
+    protected long sizeOf(Result result) {
+        long size = getEstimatedSize();
+        return size > 0 ? size : 1024;
+    }
+
+    /**
+     * {@link ResultCache} に有効な結果があれば、プログレスダイアログを出さずにすぐ {@link #setResult(Object)} します。
+     * 無ければ {@link #execute(Object...)} します。UI スレッドから呼んでください。
+     *
+     * @return true when the result was cached
+     */
+    @SuppressWarnings("unchecked")
+    public boolean start(Param... params) {
+        String key = getResultKey(params);
+        if (key != null) {
+            Result result = (Result) ResultCache.get(key);
+            if (result != null) {
+Log.d("DownloadTask", "cached: " + key);
+                setResult(result);
+                return true;
+            }
+        }
+        execute(params);
+        return false;
+    }
+
+    /**
+     * {@link #getResultTtl()} が正の場合は同じキーの実行中のタスクがあればその結果を待ち、
+     * 無ければ実行して結果を {@link ResultCache} に入れます。
+     */
+    @SuppressWarnings("unchecked")
     @Override
     protected final Result doInBackground(Param... params) {
+        String key = getResultKey(params);
+        ResultCache.Flight flight = null;
+        if (key != null) {
+            flight = ResultCache.begin(key);
+            if (!flight.isOwner()) { // キャッシュにあるか、同じ要求を実行中
+                try {
+                    return (Result) flight.await();
+                } catch (InterruptedException e) {
+Log.w("DownloadTask", "interrupted while waiting: " + key);
+                    return null;
+                }
+            }
+        }
+        Result result = null;
+        try {
+            result = downloadInGate(params);
+            return result;
+        } finally {
+            if (flight != null) {
+                ResultCache.end(key, flight, result, getResultTtl(), result != null ? sizeOf(result) : 0);
+            }
+        }
+    }
 
-    	// 2011.7.27 fixed by jun
-    	// synchronized化でメモリ不足対策
-    	if (mContext!= null) {
-	    	synchronized (mContext) {
-		        try {
-		            Result items = download(params);
-		            return items;
-		        } catch (Exception e) {
-		            Log.e("DownloadTask", e.getMessage(), e);
-		            return null;
-		        }
-			}
-    	} else {
-	        try {
-	            Result items = download(params);
-	            return items;
-	        } catch (Exception e) {
-	            Log.e("DownloadTask", e.getMessage(), e);
-	            return null;
-	        }
-    	}
+    /**
+     * {@link DownloadGate} で受け入れられてから {@link #download(Object...)} を実行します。
+     * 以前は画面ごとに直列 (synchronized (mContext)) にしていましたが、
+     * 同時実行数と見積もりサイズの合計で制限するので、メモリ不足を避けつつ並列に実行できます。
+     * 見積もりの無いタスクは今まで通り画面ごとに直列です。
+     */
+    private Result downloadInGate(Param... params) {
+        if (!isGated()) {
+            try {
+                return download(params);
+            } catch (Exception e) {
+                Log.e("DownloadTask", e.getMessage(), e);
+                return null;
+            }
+        }
+        DownloadGate gate = DownloadGate.getInstance();
+        DownloadGate.Ticket ticket;
+        try {
+            ticket = gate.acquire(mContext, getEstimatedSize());
+        } catch (InterruptedException e) {
+Log.w("DownloadTask", "interrupted while waiting");
+            return null;
+        }
+        try {
+            if (isCancelled()) {
+                return null;
+            }
+            Result items = download(params);
+            return items;
+        } catch (Exception e) {
+            Log.e("DownloadTask", e.getMessage(), e);
+            return null;
+        } finally {
+            gate.release(ticket);
+        }
     }
 
     /*
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+
+/**
+ * UI スレッドで行う処理をフレーム単位にまとめて実行します。
+ * <p>
+ * 画像の読み込みが 20 件同時に終わった場合、それぞれ Handler#post() すると
+ * setImageBitmap() ごとに invalidate とレイアウトが走ります。
+ * ここに渡された処理は 1 フレーム (約 16msec) に 1 回、まとめて 1 つのメッセージの中で実行されるので、
+ * 再描画も 1 回で済みます。
+ * 前回の実行から 1 フレーム以上経っていればすぐに実行するので、単発の場合は遅れません。
+ * </p>
+ * Choreographer は API 16 からなので Handler で近似しています。
+ */
+public class FrameBatcher {
+
+    /** [msec] */
+    private static final long FRAME_INTERVAL = 16;
+
+    /** */
+    private static FrameBatcher instance;
+
+    /** UI スレッド用 */
+    public static synchronized FrameBatcher getInstance() {
+        if (instance == null) {
+            instance = new FrameBatcher(new Handler(Looper.getMainLooper()));
+        }
+        return instance;
+    }
+
+    /** */
+    private final Handler handler;
+
+    /** 次のフレームで実行する処理 */
+    private List<Runnable> pendings = new ArrayList<Runnable>();
+
+    /** 実行が予約されているかどうか */
+    private boolean scheduled;
+
+    /** 前回実行した時刻 {@link SystemClock#uptimeMillis()} */
+    private long lastFlush;
+
+    /** 最後にまとめて実行した件数 */
+    private int lastBatchSize;
+
+    /** */
+    private final Runnable flush = new Runnable() {
+        public void run() {
+            List<Runnable> batch;
+            synchronized (FrameBatcher.this) {
+                batch = pendings;
+                pendings = new ArrayList<Runnable>();
+                scheduled = false;
+                lastFlush = SystemClock.uptimeMillis();
+                lastBatchSize = batch.size();
+            }
+            for (Runnable runnable : batch) {
+                runnable.run();
+            }
+        }
+    };
+
+    /** @param handler 実行するスレッドの Handler */
+    public FrameBatcher(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * 次のフレームで実行する処理を追加します。どのスレッドから呼んでも構いません。
+     */
+    public synchronized void post(Runnable runnable) {
+        pendings.add(runnable);
+        if (!scheduled) {
+            scheduled = true;
+            handler.postAtTime(flush, Math.max(SystemClock.uptimeMillis(), lastFlush + FRAME_INTERVAL));
+        }
+    }
+
+    /** 最後にまとめて実行した件数 */
+    public synchronized int getLastBatchSize() {
+        return lastBatchSize;
+    }
+}
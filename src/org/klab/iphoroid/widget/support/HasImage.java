@@ -6,29 +6,26 @@
 
 package org.klab.iphoroid.widget.support;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.WeakHashMap;
 import java.util.concurrent.RejectedExecutionException;
 
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
-import android.os.AsyncTask.Status;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
-import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.ListView;
 
@@ -80,8 +77,8 @@ public interface HasImage {
 
     /**
      * スクロール状態が
-     * <li>IDLE の場合は、ListView の更新、イメージキャッシュの破棄されたキャッシュイメージの解放</li>
-     * <li>FLING → TOUCH_SCROLL の場合、ListView の更新</li>
+     * <li>IDLE の場合は、FLING 中に保留した要求の実行、イメージキャッシュの破棄されたキャッシュイメージの解放</li>
+     * <li>FLING → TOUCH_SCROLL の場合、FLING 中に保留した要求の実行</li>
      * を行います。
      */
     class ListViewOnScrollListener implements OnScrollListener {
@@ -94,23 +91,42 @@ public interface HasImage {
             return scrollState;
         }
 
+        /** 先読み, null の場合は行わない */
+        private ImagePrefetcher prefetcher;
+
+        /** @param prefetcher null で先読みしない */
+        public void setPrefetcher(ImagePrefetcher prefetcher) {
+            this.prefetcher = prefetcher;
+        }
+
         /* AbsListView 返すから Gallery と統合できない...orz */
         public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
 //Log.i("HasImage.ListOnScrollListener", "onScroll: " + scrollState);
+            if (prefetcher != null) {
+                prefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
+            }
+            // 見えている行に近い要求から読み込む
+            ImageScope scope = ImageScope.find(view.getContext()); // まだ画像を要求していない、閉じた画面では作らない
+            if (scope != null && !scope.isReleased()) {
+                ImageLoader.getInstance().setViewport(scope, firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+            }
         }
 
         public void onScrollStateChanged(AbsListView view, int scrollState) {
+            if (prefetcher != null) {
+                prefetcher.onScrollStateChanged(scrollState);
+            }
             if (scrollState == SCROLL_STATE_IDLE) {
-                // 1. update view (必要確認済み)
-                view.invalidateViews();
+                // 1. load deferred images, 全行の getView() はやり直さない
+                Util.dispatchDeferred();
 
                 // 2. clear cache
                 Util.recycleImages(view);
             } else if (this.scrollState == SCROLL_STATE_FLING &&
                        scrollState == SCROLL_STATE_TOUCH_SCROLL) {
 //Log.i("HasImage.ListOnScrollListener", "onScroll: 2 -> 1");
-                // update view (必要確認済み)
-                view.invalidateViews();
+                // load deferred images
+                Util.dispatchDeferred();
             }
 
             this.scrollState = scrollState;
@@ -120,8 +136,8 @@ public interface HasImage {
 
     /**
      * スクロール状態が
-     * <li>IDLE の場合は、AdapterView の更新、イメージキャッシュの破棄されたキャッシュイメージの解放</li>
-     * <li>FLING → TOUCH_SCROLL の場合、AdapterView の更新</li>
+     * <li>IDLE の場合は、FLING 中に保留した要求の実行、イメージキャッシュの破棄されたキャッシュイメージの解放</li>
+     * <li>TOUCH_SCROLL の場合、FLING 中に保留した要求の実行</li>
      * を行います。
      */
     class AdapterViewOnScrollListener implements org.klab.iphoroid.widget.adpterview.OnScrollListener {
@@ -133,22 +149,41 @@ public interface HasImage {
             return scrollState;
         }
 
+        /** 先読み, null の場合は行わない */
+        private ImagePrefetcher prefetcher;
+
+        /** @param prefetcher null で先読みしない */
+        public void setPrefetcher(ImagePrefetcher prefetcher) {
+            this.prefetcher = prefetcher;
+        }
+
         public void onScroll(AdapterView<?> view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
 //Log.i("HasImage.AdapterViewOnScrollListener", "onScroll: " + scrollState);
+            if (prefetcher != null) {
+                prefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
+            }
+            // 見えているアイテムに近い要求から読み込む
+            ImageScope scope = ImageScope.find(view.getContext()); // まだ画像を要求していない、閉じた画面では作らない
+            if (scope != null && !scope.isReleased()) {
+                ImageLoader.getInstance().setViewport(scope, firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+            }
         }
 
         public void onScrollStateChanged(AdapterView<?> view, int scrollState) {
+            if (prefetcher != null) {
+                prefetcher.onScrollStateChanged(scrollState);
+            }
 Log.i("HasImage.AdapterViewOnScrollListener", "onScrollStateChanged.1: " + this.scrollState + ", " + scrollState);
             if (scrollState == SCROLL_STATE_IDLE) {
-                // 1. update view
-                ((BaseAdapter) view.getAdapter()).notifyDataSetChanged();
+                // 1. load deferred images, 全アイテムの getView() はやり直さない
+                Util.dispatchDeferred();
 
                 // 2. clear cache
                 Util.recycleImages(view);
             } else if (scrollState == SCROLL_STATE_TOUCH_SCROLL) {
 //Log.i("HasImage.AdapterViewOnScrollListener", "onScroll: 2 -> 1");
-                // update view
-                ((BaseAdapter) view.getAdapter()).notifyDataSetChanged();
+                // load deferred images
+                Util.dispatchDeferred();
             }
 
             this.scrollState = scrollState;
@@ -161,13 +196,142 @@ Log.i("HasImage.AdapterViewOnScrollListener", "onScrollStateChanged.2: " + scrol
      */
     public class Util {
 
-        /** tasks currently running */
-        private static Map<View, AsyncTask<?, ?, ?>> tasks = new HashMap<View, AsyncTask<?, ?, ?>>();
+        /**
+         * ImageView ごとの現在の要求 ({@link ImageRequest} か AsyncTask) です。
+         * <p>
+         * キーは WeakHashMap で、値も WeakReference なので、
+         * 終わった要求も画面から外れた ImageView も (Activity ごと) 保持し続けることはありません。
+         * 前の要求のキャンセルは走査せずに O(1) で行えます。
+         * </p>
+         */
+        private static Map<ImageView, WeakReference<Object>> requests = Collections.synchronizedMap(new WeakHashMap<ImageView, WeakReference<Object>>());
+
+        /** imageView に紐づいている要求があればキャンセルします。 */
+        private static void cancelRequest(ImageView imageView) {
+            if (imageView == null) {
+                return;
+            }
+            deferred.remove(imageView);
+            WeakReference<Object> reference = requests.remove(imageView);
+            Object request = reference != null ? reference.get() : null;
+            if (request instanceof ImageRequest) {
+                ((ImageRequest) request).cancel();
+                ImageLoader.getInstance().remove((ImageRequest) request);
+ImageStats.cancelled.incrementAndGet();
+Log.d("HasImage.Util", "cancel: " + request);
+            } else if (request instanceof AsyncTask) {
+                boolean r = ((AsyncTask<?, ?, ?>) request).cancel(true);
+Log.d("HasImage.Util", "cancel: " + imageView + ", " + r);
+            }
+        }
+
+        /**
+         * FLING 中に要求され、保留している読み込みです。値は {@link ImageRequest} か {@link DeferredTask} です。
+         * <p>
+         * ImageView 1 つにつき最新の 1 つだけを持ち、FLING が終わった時に
+         * {@link #dispatchDeferred()} でまだ表示されているものだけを実行します。
+         * </p>
+         */
+        private static Map<ImageView, Object> deferred = Collections.synchronizedMap(new WeakHashMap<ImageView, Object>());
+
+        /** 保留した AsyncTask の要求 */
+        private static class DeferredTask {
+            final AsyncTask<String, Void, Bitmap> task;
+            final String url;
+            /** 保留時の ImageView#getTag() */
+            final Object tag;
+            DeferredTask(AsyncTask<String, Void, Bitmap> task, String url, Object tag) {
+                this.task = task;
+                this.url = url;
+                this.tag = tag;
+            }
+        }
+
+        /**
+         * FLING 中に保留した要求のうち、まだ表示されていて使いまわされていない ImageView のものだけを実行します。
+         * アダプタの getView() を呼び直す必要はありません。UI スレッドから呼んでください。
+         *
+         * @see ListViewOnScrollListener
+         * @see AdapterViewOnScrollListener
+         */
+        public static void dispatchDeferred() {
+            Map<ImageView, Object> pendings;
+            synchronized (deferred) {
+                if (deferred.isEmpty()) {
+                    return;
+                }
+                pendings = new HashMap<ImageView, Object>(deferred);
+                deferred.clear();
+            }
+Log.d("HasImage.Util", "deferred: " + pendings.size());
+            for (Map.Entry<ImageView, Object> entry : pendings.entrySet()) {
+                ImageView imageView = entry.getKey();
+                if (imageView == null || !imageView.isShown()) { // 画面外, リサイクル待ち
+                    continue;
+                }
+                Object pending = entry.getValue();
+                if (pending instanceof ImageRequest) {
+                    ImageRequest request = (ImageRequest) pending;
+                    if (!request.isCancelled() && request.isTagMatched()) {
+                        showThumbnail(request, true);
+                        submit(imageView, request);
+                    }
+                } else {
+                    DeferredTask deferredTask = (DeferredTask) pending;
+                    Object tag = imageView.getTag();
+                    if (tag == null ? deferredTask.tag == null : tag.equals(deferredTask.tag)) {
+                        execute(imageView, deferredTask.task, deferredTask.url);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 小さい画像がキャッシュにあれば表示し、無ければ load の場合は本来の要求より先に読み込みます。
+         *
+         * @see ImageRequest#setThumbnail(String)
+         */
+        private static void showThumbnail(ImageRequest request, boolean load) {
+            ImageRequest thumbnail = request.getThumbnail();
+            if (thumbnail == null) {
+                return;
+            }
+            Bitmap image = ImageCache.getImageToBind(thumbnail.getCacheKey());
+            if (image != null) {
+                thumbnail.showThumbnail(image);
+            } else if (load && thumbnail.isThumbnailLoadable()) {
+                ImageLoader.getInstance().submit(thumbnail);
+            }
+        }
+
+        /** */
+        private static void submit(ImageView imageView, ImageRequest request) {
+            ImageLoader.getInstance().submit(request);
+            putRequest(imageView, request);
+        }
+
+        /** */
+        private static void execute(ImageView imageView, AsyncTask<String, Void, Bitmap> task, String url) {
+            try {
+                task.execute(url);
+                putRequest(imageView, task);
+Log.d("HasImage.Util", "mem: " + Runtime.getRuntime().freeMemory() + "/" + Runtime.getRuntime().maxMemory() + ", requests: " + requests.size());
+            } catch (RejectedExecutionException e) {
+                Log.e("HasImage.Util", e.toString());
+            }
+        }
+
+        /** request を imageView の現在の要求にします。 */
+        private static void putRequest(ImageView imageView, Object request) {
+            if (imageView != null) {
+                requests.put(imageView, new WeakReference<Object>(request));
+            }
+        }
 
         /**
          * task で取得してきた Bitmap を imageView に設定します。
          *
-         * @see #setImage(Context, String, ImageView, Drawable, AsyncTask, String)
+         * @see #setImage(Context, ImageRequest)
          * @param context should be {@link HasImage}
          * @param url for image
          * @param loadingDrawable
@@ -175,20 +339,71 @@ Log.i("HasImage.AdapterViewOnScrollListener", "onScrollStateChanged.2: " + scrol
          * @param task image download
          */
         public static void setImage(Context context, String url, ImageView imageView, Drawable loadingDrawable, Drawable noImageDrawable) {
-            setImage(context, url, imageView, new ImageDownloadTask(imageView, new ImageDownloadTask.DefaultImageDownloadHelper(loadingDrawable, noImageDrawable)), null);
+            setImage(context, url, imageView, new ImageDownloadTask.DefaultImageDownloadHelper(loadingDrawable, noImageDrawable));
         }
 
         /**
          * task で取得してきた Bitmap を imageView に設定します。
          *
-         * @see #setImage(Context, String, ImageView, Drawable, AsyncTask, String)
+         * @see #setImage(Context, ImageRequest)
          * @param context should be {@link HasImage}
          * @param url for image
          * @param imageDownloadHelper
          * @param task image download
          */
         public static void setImage(Context context, String url, ImageView imageView, ImageDownloadHelper<String> imageDownloadHelper) {
-            setImage(context, url, imageView, new ImageDownloadTask(imageView, imageDownloadHelper), null);
+            setImage(context, new ImageRequest(url, null, imageView, imageDownloadHelper));
+        }
+
+        /**
+         * request を {@link ImageLoader} で読み込んで ImageView に設定します。
+         *
+         * <ul>
+         * <li>ImageView に紐づいている前の要求があればキャンセル
+         * <li>イメージがキャッシュにあればそのまま表示
+         * <li>最近取得に失敗した URL ({@link NegativeCache}) はすぐに失敗扱い
+         * <li>無ければスクロール状態が FLING ではない場合 (FLING 中でもディスクキャッシュにあれば)、
+         *     {@link ImageLoader} のキューに入れる
+         * <li>FLING 中は保留して、FLING が終わった時にまだ表示されていれば読み込む
+         * <li>小さい画像 ({@link ImageRequest#setThumbnail(String)}) があれば先に表示する
+         * </ul>
+         * AsyncTask を使わないので、プールが一杯で要求が捨てられることはありません。
+         * 要求とキャッシュのキーは context の {@link ImageScope} に記録されます。
+         *
+         * @param context should be {@link HasImage}
+         */
+        public static void setImage(Context context, ImageRequest request) {
+            if (context instanceof HasImage) {
+                ImageView imageView = request.getImageView();
+                cancelRequest(imageView);
+                if (request.getScope() == null) {
+                    request.setScope(ImageScope.of(context));
+                }
+                String key = request.getCacheKey();
+                Bitmap image = ImageCache.getImageToBind(key);
+                if (image == null) {
+                    if (NegativeCache.isFailed(request.getUrl())) { // 失敗したばかりなのでタスクも作らない
+                        request.deliver(null); // ダウンロードに失敗した場合と同じく onDownloadFailure()、onDownloadSuccess() の順に呼ぶ
+Log.d("HasImage.Util", "negative: " + request.getUrl());
+                    } else if (((HasImage) context).getScrollState() != ListView.OnScrollListener.SCROLL_STATE_FLING || // OnScrollListener#SCROLL_STATE_FLING
+                        (request.isStaged() && ImageCache.isDiskCached(request.getDiskKey()))) { // ネットワークに行かないので FLING 中でも読む
+                        request.onPreLoad();
+                        showThumbnail(request, true);
+                        submit(imageView, request);
+                    } else {
+                        request.onPreLoad();
+                        showThumbnail(request, false);
+                        deferred.put(imageView, request);
+Log.i("HasImage.Util", "flinging, deferred");
+                    }
+                } else {
+                    request.getScope().add(key);
+                    imageView.setImageBitmap(image);
+                    BitmapTracker.bind(imageView, image);
+                }
+            } else {
+                throw new IllegalStateException("context must be HasImage");
+            }
         }
 
         /**
@@ -210,11 +425,12 @@ Log.i("HasImage.AdapterViewOnScrollListener", "onScrollStateChanged.2: " + scrol
          * <li>イメージがキャッシュにあればそのまま表示
          * <li>無ければ
          *   <ul>
-         *   <li>スクロール状態が FLING ではない場合、
+         *   <li>スクロール状態が FLING ではない場合 (FLING 中でもディスクキャッシュにあれば)、
          *     <ul>
-         *     <li>ImageView をキーにしたタスクリストが存在すればすべてタスクキャンセル
+         *     <li>ImageView に紐づいている前の要求があればキャンセル
          *     <li>イメージダウンロードタスク実行
          *     </ul>
+         *   <li>FLING 中は保留して、FLING が終わった時にまだ表示されていれば実行
          *   </ul>
          * </ul>
          *
@@ -222,210 +438,85 @@ Log.i("HasImage.AdapterViewOnScrollListener", "onScrollStateChanged.2: " + scrol
          * @param url for image
          * @param imageView the image to be set, if null using progress bar
          * @param task image download
-         * @param postfix key for cache (when null, ignored)
+         * @param postfix key for cache (when null, ignored), 加工した画像には {@link ImageRequest#setTransformation(ImageTransformation)} を使ってください
          */
         public static void setImage(Context context, String url, ImageView imageView, AsyncTask<String, Void, Bitmap> task, String postfix) {
             if (context instanceof HasImage) {
 //Log.d("HasImage.Util", "scrolling: " + ((HasImage) context).getScrollState());
-                Bitmap image = ImageCache.getImage(postfix != null ? url + postfix : url);
+                String key;
+                boolean diskCached;
+                if (task instanceof ImageDownloadTask) {
+                    // タスクがキャッシュするのと同じ (サイズを含む) キー, view のサイズはここ (UI スレッド) で読む
+                    ImageRequest request = ((ImageDownloadTask) task).prepare(url, postfix);
+                    key = request.getCacheKey();
+                    diskCached = request.isStaged() && ImageCache.isDiskCached(request.getDiskKey());
+                } else {
+                    key = postfix != null ? url + postfix : url;
+                    diskCached = ImageCache.isDiskCached(url);
+                }
+                ImageScope.of(context).add(key);
+                Bitmap image = ImageCache.getImageToBind(key);
                 if (image == null) {
-                    if (((HasImage) context).getScrollState() != ListView.OnScrollListener.SCROLL_STATE_FLING) { // OnScrollListener#SCROLL_STATE_FLING
-                        for (Map.Entry<View, AsyncTask<?, ?, ?>> entry : tasks.entrySet()) {
-                            if (entry.getKey().equals(imageView)) {
-                                boolean r = entry.getValue().cancel(true);
-Log.d("HasImage.Util", "cancel: " + imageView + ", " + r);
-                            }
-                        }
-                        Iterator<AsyncTask<?, ?, ?>> i = tasks.values().iterator();
-                        try {
-                            while (i.hasNext()) {
-                                AsyncTask<?, ?, ?> t = i.next();
-                                if (t.isCancelled() || t.getStatus().equals(Status.FINISHED)) {
-                                    i.remove();
-                                }
-                            }
-                        } catch (Exception e) { // for ConcurrentModificationException
-                            Log.e("HasImage.Util", e.toString());
-                        }
-                        try {
-                            task.execute(url);
-                            tasks.put(imageView, task);
-Log.d("HasImage.Util", "mem: " + Runtime.getRuntime().freeMemory() + "/" + Runtime.getRuntime().maxMemory() + ", tasks: " + tasks.size());
-                        } catch (RejectedExecutionException e) {
-                            Log.e("HasImage.Util", e.toString());
-                        }
+                    if (task instanceof ImageDownloadTask && NegativeCache.isFailed(url)) { // 失敗したばかりなのでタスクを実行しない
+                        cancelRequest(imageView);
+                        ((ImageDownloadTask) task).prepare(url, postfix).deliver(null); // ダウンロードに失敗した場合と同じ通知
+Log.d("HasImage.Util", "negative: " + url);
+                    } else if (((HasImage) context).getScrollState() != ListView.OnScrollListener.SCROLL_STATE_FLING || // OnScrollListener#SCROLL_STATE_FLING
+                        diskCached) { // ネットワークに行かないので FLING 中でも読む
+                        cancelRequest(imageView);
+                        execute(imageView, task, url);
                     } else {
-Log.i("HasImage.Util", "flinging");
+                        cancelRequest(imageView);
+                        deferred.put(imageView, new DeferredTask(task, url, imageView.getTag()));
+Log.i("HasImage.Util", "flinging, deferred");
                     }
                 } else {
+                    cancelRequest(imageView);
                     imageView.setImageBitmap(image);
+                    BitmapTracker.bind(imageView, image);
                 }
             } else {
                 throw new IllegalStateException("context must be HasImage");
             }
         }
 
-        /** @see #recycleImages(ViewGroup) */
-        private static Executor executor = Executors.newSingleThreadExecutor();
-
         /**
-         * キャッシュでエキスパイアされたイメージで且つ ViewGroup で表示されていない
-         * イメージを別 Thread で recycle() します。
+         * キャッシュでエキスパイアされたイメージで且つ表示されていない
+         * イメージを recycle() します。
+         * <p>
+         * 表示中かどうかは {@link BitmapTracker} で判定するので、ビューツリーを辿らず
+         * エキスパイアされた数に比例する時間で終わります。UI スレッドから呼んでください。
+         * </p>
+         * @param viewGroup 使用しません (互換のため)
          */
-        public static void recycleImages(final ViewGroup viewGroup) {
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        setImageViewsOfCurrentActivity(viewGroup);
-                        recycleImages();
-                        clearImageViewsOfCurrentActivity();
-                    } catch (Exception e) {
-                        Log.e("HasImage.Util", e.getMessage(), e);
-                    }
-                }
-            });
+        public static void recycleImages(ViewGroup viewGroup) {
+            recycleImages();
         }
 
         /**
-         * キャッシュでエキスパイアされたイメージで且つ ViewGroup で表示されていない
+         * キャッシュでエキスパイアされたイメージで且つ表示されていない
          * イメージを recycle() します。
          *
-         * 現在の Activity の ImageView は登録されていませんので自分で追加しておいてください。
+         * ヒープの使用状況に合わせてキャッシュの容量も調整します。
          *
-         * キャッシュはいつか消えてくれるので ConcurrentModificationException は無視します。
-         * パフォーマンスのため、ImageCache をスレッドセーフにはしません。
-         *
-         * TBD background?
-         *
-         * @see #setImageViewsOfActivity(Activity)
+         * @see ImageCache#recycleEvicted()
+         * @see MemoryGovernor#check()
          */
         private static void recycleImages() {
-            try {
-                for (Map.Entry<String, Bitmap> entry : ImageCache.getExpired().entrySet()) {
-                    String key = entry.getKey();
-                    Bitmap bitmap = entry.getValue();
-Log.v("HasImage.Util", "expired: " + bitmap);
-                    if (bitmap != null) {
-                        if (!bitmap.isRecycled()) { // 2011.7.27 fixed by jun
-                            if (!isUsed(bitmap)) {
-                                bitmap.recycle();
-Log.w("HasImage.Util", "recycled: " + bitmap);
-                            } else {
-                                ImageCache.setImage(key, bitmap);
-Log.v("HasImage.Util", "used, recache: " + bitmap);
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) { // for ConcurrentModificationException
-                Log.e("HasImage.Util", e.toString());
-            }
-            try {
-                Iterator<Bitmap> i = ImageCache.getExpired().values().iterator();
-                while (i.hasNext()) {
-                    Bitmap bitmap = i.next();
-                    if (bitmap != null && bitmap.isRecycled()) {
-                        i.remove();
-                    }
-                }
-            } catch (Exception e) { // for ConcurrentModificationException
-                Log.e("HasImage.Util", e.toString());
-            }
+            MemoryGovernor.check();
+            ImageCache.recycleEvicted();
         }
 
-        /** Gets image of views on screen. */
-        private static void getChildImageViews(ViewGroup viewGroup, Set<ImageView> used) {
+        /** viewGroup 以下の ImageView の記録を {@link BitmapTracker} から外します。 */
+        private static void unbindChildImageViews(ViewGroup viewGroup) {
             for (int i = 0; i < viewGroup.getChildCount(); i++) {
                 View view = viewGroup.getChildAt(i);
                 if (view instanceof ImageView) {
-                    ImageView imageView = (ImageView) viewGroup.getChildAt(i);
-                    used.add(imageView);
+                    BitmapTracker.unbind((ImageView) view);
                 } else if (view instanceof ViewGroup) {
-                    ViewGroup viewGroup_ = (ViewGroup) viewGroup.getChildAt(i);
-                    getChildImageViews(viewGroup_, used);
-                }
-            }
-        }
-
-        /** imageViews currently used, key is {@link Activity#hashCode()} */
-        private static Map<Integer, Set<ImageView>> imageViewsOfActivity = new HashMap<Integer, Set<ImageView>>();
-
-        /** @see #imageViewsOfActivity */
-        private static boolean isUsed(Bitmap target) {
-            for (ImageView imageView : getImageViewsOfActivities()) {
-                BitmapDrawable bitmapDrawable = (BitmapDrawable) imageView.getDrawable();
-                if (bitmapDrawable != null) {
-                    Bitmap bitmap = bitmapDrawable.getBitmap();
-                    if (bitmap == target) {
-                        return true;
-                    }
+                    unbindChildImageViews((ViewGroup) view);
                 }
             }
-            return false;
-        }
-
-        /** @see #imageViewsOfActivity */
-        private static Set<ImageView> getImageViewsOfActivities() {
-            Set<ImageView> result = new HashSet<ImageView>();
-            for (Set<ImageView> set : imageViewsOfActivity.values()) {
-                for (ImageView imageView : set) {
-                    result.add(imageView);
-                }
-            }
-            return result;
-        }
-
-        /**
-         * Activity 中の ImageView を {@link #imageViewsOfActivity} に追加します。
-         * 
-         * @see #clearImageViewsOfActivity(Activity)
-         */
-        private static void setImageViewsOfActivity(Activity activity) {
-            ViewGroup root = (ViewGroup) activity.findViewById(android.R.id.content);
-            setImageViewsOfActivity(root, activity.hashCode());
-Log.d("HasImage.Util", "SET: remainings: " + activity.getClass().getSimpleName());
-        }
-
-        /**
-         * {@link #imageViewsOfActivity} のこの Activity に紐づいている ImageView を削除します。
-         *
-         * @see #setImageViewsOfActivity(Activity)
-         */
-        private static void clearImageViewsOfActivity(Activity activity) {
-            clearImageViewsOfActivity(activity.hashCode());
-Log.d("HasImage.Util", "CLEAR: remainings: " + activity.getClass().getSimpleName());
-        }
-
-        /** */
-        private static void setImageViewsOfActivity(ViewGroup root, int hashCode) {
-            Set<ImageView> imageViews = new HashSet<ImageView>();
-            getChildImageViews(root, imageViews);
-            imageViewsOfActivity.put(hashCode, imageViews);
-Log.d("HasImage.Util", "SET: remainings: " + getImageViewsOfActivities().size());
-        }
-
-        /** */
-        private static void clearImageViewsOfActivity(int hashCode) {
-            try {
-                imageViewsOfActivity.remove(hashCode);
-            } catch (Exception e) { // for ConcurrentModificationException
-                Log.e("HasImage.Util", e.toString());
-            }
-Log.d("HasImage.Util", "CLEAR: remainings: " + getImageViewsOfActivities().size());
-        }
-
-        /** 0 (Object#hashCode()) is really unique? */
-        private static final int CURRENT_ACTIVITY_ID = 0;
-
-        /** */
-        private static void setImageViewsOfCurrentActivity(ViewGroup root) {
-            setImageViewsOfActivity(root, CURRENT_ACTIVITY_ID);
-        }
-
-        /** */
-        private static void clearImageViewsOfCurrentActivity() {
-            clearImageViewsOfActivity(CURRENT_ACTIVITY_ID);
         }
 
         /**
@@ -459,7 +550,7 @@ Log.d("HasImage.Util", "CLEAR: remainings: " + getImageViewsOfActivities().size(
          * TBD 超面倒
          */
         public static void onResume(Activity activity) {
-            clearImageViewsOfActivity(activity);
+            // 表示中の Bitmap は BitmapTracker に記録されているので何もしない
         }
 
         /**
@@ -493,8 +584,6 @@ Log.d("HasImage.Util", "CLEAR: remainings: " + getImageViewsOfActivities().size(
          * TBD 超面倒
          */
         public static void onPause(Activity activity) {
-            clearImageViewsOfActivity(activity);
-            setImageViewsOfActivity(activity);
             recycleImages();
         }
 
@@ -529,7 +618,33 @@ Log.d("HasImage.Util", "CLEAR: remainings: " + getImageViewsOfActivities().size(
          * TBD 超面倒
          */
         public static void onDestroy(Activity activity) {
-            clearImageViewsOfActivity(activity);
+            // 1. この Activity の ImageView の要求をキャンセル (AsyncTask の分も)
+            cancelRequests(activity);
+
+            // 2. GC を待たずにこの Activity の Bitmap を recycle() 対象にする
+            ViewGroup root = (ViewGroup) activity.findViewById(android.R.id.content);
+            if (root != null) {
+                unbindChildImageViews(root);
+            }
+
+            // 3. 他の画面で使っていないキャッシュを捨てて recycle()
+            ImageScope.release(activity);
+        }
+
+        /** context に属する ImageView の要求と保留している要求をキャンセルします。 */
+        private static void cancelRequests(Context context) {
+            List<ImageView> imageViews = new ArrayList<ImageView>();
+            synchronized (requests) {
+                imageViews.addAll(requests.keySet());
+            }
+            synchronized (deferred) {
+                imageViews.addAll(deferred.keySet());
+            }
+            for (ImageView imageView : imageViews) {
+                if (imageView != null && imageView.getContext() == context) {
+                    cancelRequest(imageView);
+                }
+            }
         }
     }
 }
@@ -6,13 +6,25 @@
 
 package org.klab.iphoroid.widget.support;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import android.graphics.Bitmap;
 import android.util.Log;
 
 import org.klab.iphoroid.util.Cache;
+import org.klab.iphoroid.util.DiskCache;
 
 
 /**
@@ -22,6 +34,19 @@ import org.klab.iphoroid.util.Cache;
  * <li>GC では結構消されるので使用に耐えない</li>
  * <li>WeakHashMap の監視は ReferenceQueue</li>
  *
+ * キャッシュから溢れた (エキスパイアされた) 画像はまだ表示されている可能性があるので、
+ * すぐには recycle() せず容量制限付きの猶予領域に移します。
+ * 猶予領域にある間に {@link #getImage(String)} されるとキャッシュに戻ります。
+ * キャッシュは数 ({@link #setMaxSize(int)}) と合計のバイト数 ({@link #setMaxBytes(long)}) の両方で制限されるので、
+ * 猶予領域と合わせたメモリの使用量には上限があります。
+ * 猶予領域からも溢れたものは {@link #recycleEvicted()} で表示されていなければ recycle() します。
+ *
+ * {@link #setDiskCache(DiskCache)} でディスクキャッシュを設定するとプロセスが再起動しても
+ * ダウンロードし直さずにディスクから読み込みます。
+ * <pre>
+ *     ImageCache.setDiskCache(DiskCache.open(new File(context.getCacheDir(), "images"), 10 * 1024 * 1024));
+ * </pre>
+ *
  * @author <a href="mailto:sano-n@klab.jp">Naohide Sano</a> (sano-n)
  */
 public abstract class ImageCache {
@@ -29,11 +54,17 @@ public abstract class ImageCache {
     /** */
     private static Map<String, Bitmap> cache;
 
-    /** */
-    private static Map<String, Bitmap> expired = new HashMap<String, Bitmap>();
+    /** 猶予領域, エキスパイアされたがまだ使われているかもしれない画像, アクセス順 */
+    private static final LinkedHashMap<String, Bitmap> grace = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+
+    /** 猶予領域の合計 [byte] */
+    private static long graceBytes;
+
+    /** 猶予領域の上限 [byte] */
+    private static long graceMaxBytes = 4 * 1024 * 1024;
 
-static int hitCount;
-static int unhitCount;
+    /** 猶予領域から溢れ、{@link #recycleEvicted()} を待っている画像 */
+    private static final List<Bitmap> evicted = new ArrayList<Bitmap>();
 
     /**
      * キャッシュしておく最大数
@@ -45,59 +76,155 @@ static int unhitCount;
      */
     private static int leftTime = 30 * 1000;
 
-    /** */
+    /**
+     * キャッシュしておく画像の合計の上限 [byte], API 11 未満ではピクセルはネイティブヒープだがプロセスの上限に数えられる
+     */
+    private static long maxBytes = Runtime.getRuntime().maxMemory() / 8;
+
+    /** @param maxBytes 画像の合計の上限 [byte], 溢れた分は猶予領域に移ります。 */
+    public static void setMaxBytes(long maxBytes) {
+        ImageCache.maxBytes = maxBytes;
+        if (cache != null) {
+            ((Cache<String, Bitmap>) cache).setMaxCacheBytes(maxBytes);
+        }
+    }
+
+    /** [byte] */
+    public static long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** キャッシュにある画像の合計 [byte] */
+    public static long getBytes() {
+        return ((Cache<String, Bitmap>) cache).getCacheBytes();
+    }
+
+    /** 溢れた分は猶予領域に移ります。 */
     public static void setMaxSize(int maxSize) {
         ImageCache.maxSize = maxSize;
+        if (cache != null) {
+            ((Cache<String, Bitmap>) cache).setMaxCacheSize(maxSize);
+        }
+    }
+
+    /** */
+    public static int getMaxSize() {
+        return maxSize;
     }
 
     /** */
     public static void setLeftTime(int leftTime) {
         ImageCache.leftTime = leftTime;
+        if (cache != null) {
+            ((Cache<String, Bitmap>) cache).setMaxLifetime(leftTime);
+        }
     }
 
     static {
 //        cache = new HashMap<String, Bitmap>();
-        cache = new Cache<String, Bitmap>(maxSize, leftTime);
+        cache = new Cache<String, Bitmap>(maxSize, leftTime) {
+            @Override
+            protected long sizeOf(String key, Bitmap bitmap) {
+                return ImageCache.sizeOf(bitmap);
+            }
+        };
+        ((Cache<String, Bitmap>) cache).setMaxCacheBytes(maxBytes);
         ((Cache<String, Bitmap>) cache).setExpiredListener(new Cache.OnExpiredListener<Bitmap>() {
             @Override
             public void onExpired(Object key, Bitmap bitmap) {
                 // ここだはまだ使用されている可能性があるので recycle() できない
 Log.w("ImageCache", "Expired: " + bitmap + ", " + key);
-                expired.put((String) key, bitmap);
+                putGrace((String) key, bitmap);
             }
         });
     }
 
     /**
      * thread unsafe
+     * 返した画像はどこに表示されるか分からないので、キャッシュから溢れても recycle() しません。
      * @return null when no cache
+     * @see BitmapTracker#isRecyclable(Bitmap)
      */
     public static Bitmap getImage(String key) {
+        Bitmap bitmap = getImageToBind(key);
+        BitmapTracker.handOut(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * ライブラリの中で ImageView に設定し、{@link BitmapTracker#bind(android.widget.ImageView, Bitmap)} する画像を取得します。
+     * @return null when no cache
+     */
+    static Bitmap getImageToBind(String key) {
 try {
         if (cache.containsKey(key)) {
             Bitmap bitmap = cache.get(key);
-++hitCount;
+ImageStats.memoryHits.incrementAndGet();
             return bitmap;
         } else {
-++unhitCount;
+            Bitmap bitmap = takeGrace(key);
+            if (bitmap != null) {
+                // 猶予領域からキャッシュに移す, ロックの順番のため takeGrace() の外で
+                // 猶予領域からは取り除いてあるので、押し出されたものが猶予領域に入っても合計はどちらも上限内
+                cache.put(key, bitmap);
+ImageStats.memoryHits.incrementAndGet();
+                return bitmap;
+            }
+ImageStats.memoryMisses.incrementAndGet();
             return null;
         }
 } finally {
- Log.d("ImageCache", "cache: hit: " + hitCount + ", fail: " + unhitCount + ", size: " + cache.size() + ", key: " + key);
+ Log.d("ImageCache", "cache: hit: " + ImageStats.memoryHits.get() + ", fail: " + ImageStats.memoryMisses.get() + ", size: " + cache.size() + ", key: " + key);
  Log.d("ImageCache", "mem: " + Runtime.getRuntime().freeMemory() + "/" + Runtime.getRuntime().totalMemory());
 }
     }
 
+    /**
+     * ヒット数や LRU の順番に影響を与えずにキャッシュにあるかどうかを返します。
+     */
+    public static boolean isCached(String key) {
+        if (cache.containsKey(key)) {
+            return true;
+        }
+        synchronized (grace) {
+            return grace.containsKey(key);
+        }
+    }
+
     /** thread unsafe */
     public static void setImage(String key, Bitmap image) {
         try {
+            if (cache.containsKey(key) && cache.get(key) == image) {
+                // 同じものを入れ直すと古い方として猶予領域に入り、後で recycle() されてしまう
+                return;
+            }
             cache.put(key, image);
         } catch (Exception e) {
 Log.e("ImageCache", e.getMessage(), e);
         }
     }
 
-    /** 
+    /**
+     * key の画像をエキスパイアを待たずにキャッシュ (猶予領域も) から捨てます。
+     * 画像は {@link #recycleEvicted()} で表示されていなければ recycle() されます。
+     *
+     * @return true when the image was cached
+     * @see ImageScope#release()
+     */
+    public static boolean evict(String key) {
+        cache.remove(key); // 猶予領域に移る
+        synchronized (grace) {
+            Bitmap bitmap = grace.remove(key);
+            if (bitmap == null) {
+                return false;
+            }
+            graceBytes -= sizeOf(bitmap);
+            evicted.add(bitmap);
+            return true;
+        }
+    }
+
+    /**
      * キャッシュをクリアします
      */
     public static void clear() {
@@ -107,13 +234,253 @@ Log.e("ImageCache", e.getMessage(), e);
             }
         }
         cache.clear();
+        synchronized (grace) {
+            for (Bitmap bitmap : grace.values()) {
+                evicted.add(bitmap);
+            }
+            grace.clear();
+            graceBytes = 0;
+            for (Bitmap bitmap : evicted) {
+                if (bitmap != null && !bitmap.isRecycled()) {
+                    bitmap.recycle();
+                }
+            }
+            evicted.clear();
+        }
     }
 
     /**
-     * 
-     * @return
+     * 猶予領域のコピーを返します。
+     * @return unmodifiable
      */
     public static Map<String, Bitmap> getExpired() {
-        return expired;
+        synchronized (grace) {
+            return Collections.unmodifiableMap(new HashMap<String, Bitmap>(grace));
+        }
+    }
+
+    /** [byte] */
+    public static long getGraceMaxBytes() {
+        synchronized (grace) {
+            return graceMaxBytes;
+        }
+    }
+
+    /** @param graceMaxBytes 猶予領域の上限 [byte] */
+    public static void setGraceMaxBytes(long graceMaxBytes) {
+        synchronized (grace) {
+            ImageCache.graceMaxBytes = graceMaxBytes;
+            trimGrace();
+        }
+    }
+
+    /** 猶予領域の合計 [byte] */
+    public static long getGraceBytes() {
+        synchronized (grace) {
+            return graceBytes;
+        }
+    }
+
+    /** Bitmap#getByteCount() は API 12 から */
+    static long sizeOf(Bitmap bitmap) {
+        return bitmap == null || bitmap.isRecycled() ? 0 : (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /** エキスパイアされた画像を猶予領域に入れます。 */
+    private static void putGrace(String key, Bitmap bitmap) {
+        synchronized (grace) {
+            Bitmap old = grace.put(key, bitmap);
+            if (old != null) {
+                graceBytes -= sizeOf(old);
+                if (old != bitmap) {
+                    evicted.add(old);
+                }
+            }
+            graceBytes += sizeOf(bitmap);
+            trimGrace();
+        }
+    }
+
+    /** 猶予領域から取り出します。 */
+    private static Bitmap takeGrace(String key) {
+        synchronized (grace) {
+            Bitmap bitmap = grace.remove(key);
+            if (bitmap != null) {
+                graceBytes -= sizeOf(bitmap);
+                if (bitmap.isRecycled()) {
+                    return null;
+                }
+            }
+            return bitmap;
+        }
+    }
+
+    /** 上限を超えた分を古いものから {@link #evicted} に移します。 */
+    private static void trimGrace() {
+        Iterator<Bitmap> i = grace.values().iterator();
+        while (graceBytes > graceMaxBytes && i.hasNext()) {
+            Bitmap bitmap = i.next();
+            i.remove();
+            graceBytes -= sizeOf(bitmap);
+            evicted.add(bitmap);
+Log.v("ImageCache", "evicted: " + bitmap);
+        }
+    }
+
+    /**
+     * 猶予領域から溢れた画像のうち、表示されていないものを recycle() します。
+     * 表示中かどうかは {@link BitmapTracker} で判定します。表示中のものや、アプリに渡したもの等
+     * 表示中か分からないものは参照を捨てるだけです。
+     * UI スレッドから呼んでください。
+     */
+    public static void recycleEvicted() {
+        List<Bitmap> bitmaps;
+        synchronized (grace) {
+            if (evicted.isEmpty()) {
+                return;
+            }
+            bitmaps = new ArrayList<Bitmap>(evicted);
+            evicted.clear();
+        }
+        for (Bitmap bitmap : bitmaps) {
+            if (bitmap != null && !bitmap.isRecycled() && BitmapTracker.isRecyclable(bitmap)) {
+                bitmap.recycle();
+Log.w("ImageCache", "recycled: " + bitmap);
+            }
+        }
+    }
+
+    /** ディスクキャッシュ, null の場合は使用しない */
+    private static volatile DiskCache diskCache;
+
+    /**
+     * ディスクキャッシュを設定します。Application#onCreate() 等で一度だけ設定してください。
+     * @param diskCache null でディスクキャッシュを使用しない
+     */
+    public static void setDiskCache(DiskCache diskCache) {
+        ImageCache.diskCache = diskCache;
+    }
+
+    /** @return null when not set */
+    public static DiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * ディスクキャッシュにあるかどうかを判定します。
+     * メモリマップされたインデックスを引くだけで、ジャーナルの読み込み等をしている
+     * {@link DiskCache} のロックも待たないので UI スレッドから呼んでも構いません。
+     */
+    public static boolean isDiskCached(String key) {
+        DiskCache diskCache = ImageCache.diskCache;
+        if (diskCache == null) {
+            return false;
+        }
+        try {
+            return diskCache.contains(key);
+        } catch (IllegalStateException e) { // closed
+Log.w("ImageCache", e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * ディスクキャッシュから読み込みます。ファイルを読むので UI スレッドからは呼ばないでください。
+     * 保存されているのはダウンロードしたままのデータ ({@link #setDiskBytes(String, byte[])}) です。
+     * @return null when no cache
+     */
+    public static Bitmap getDiskImage(String key) {
+        DiskCache diskCache = ImageCache.diskCache;
+        if (diskCache == null) {
+            return null;
+        }
+        try {
+            File file = diskCache.get(key);
+            if (file != null) {
+                Bitmap bitmap = BitmapDecoder.decodeFile(file.getPath(), 0, 0); // JPEG は RGB_565
+                if (bitmap == null) {
+Log.w("ImageCache", "broken disk cache: " + key);
+                    diskCache.remove(key);
+                }
+                return bitmap;
+            }
+        } catch (IOException e) {
+Log.e("ImageCache", e.getMessage(), e);
+        }
+        return null;
+    }
+
+    /** ディスクキャッシュから削除します。ファイルを消すので UI スレッドからは呼ばないでください。 */
+    public static void removeDiskImage(String key) {
+        DiskCache diskCache = ImageCache.diskCache;
+        if (diskCache == null) {
+            return;
+        }
+        try {
+            diskCache.remove(key);
+        } catch (IOException e) {
+Log.e("ImageCache", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * ディスクキャッシュからデコードせずにそのまま読み込みます。
+     * ファイルを読むので UI スレッドからは呼ばないでください。
+     * @return null when no cache
+     * @see ImageDownloadTask.StagedImageDownloadHelper
+     */
+    public static byte[] getDiskBytes(String key) {
+        DiskCache diskCache = ImageCache.diskCache;
+        if (diskCache == null) {
+            return null;
+        }
+        try {
+            File file = diskCache.get(key);
+            if (file != null) {
+                InputStream is = new FileInputStream(file);
+                try {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream((int) file.length());
+                    byte[] buffer = new byte[8192];
+                    int r;
+                    while ((r = is.read(buffer)) != -1) {
+                        baos.write(buffer, 0, r);
+                    }
+                    return baos.toByteArray();
+                } finally {
+                    is.close();
+                }
+            }
+        } catch (IOException e) {
+Log.e("ImageCache", e.getMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * ダウンロードしたデータを再エンコードせずにディスクキャッシュに書き込みます。
+     * デコードした Bitmap を圧縮し直すと劣化し CPU も使うので、ディスクキャッシュには必ず元のデータを保存します。
+     * ファイルに書くので UI スレッドからは呼ばないでください。
+     */
+    public static void setDiskBytes(String key, byte[] data) {
+        DiskCache diskCache = ImageCache.diskCache;
+        if (diskCache == null || data == null) {
+            return;
+        }
+        try {
+            DiskCache.Editor editor = diskCache.edit(key);
+            if (editor == null) {
+                // 他のスレッドで書き込み中
+                return;
+            }
+            OutputStream os = editor.newOutputStream();
+            try {
+                os.write(data);
+            } finally {
+                os.close();
+            }
+            editor.commit(); // 書き込みに失敗していれば abort 扱い
+        } catch (IOException e) {
+Log.e("ImageCache", e.getMessage(), e);
+        }
     }
 }
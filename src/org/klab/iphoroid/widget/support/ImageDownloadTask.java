@@ -9,7 +9,6 @@ package org.klab.iphoroid.widget.support;
 import java.io.IOException;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.util.Log;
@@ -18,6 +17,11 @@ import android.widget.ImageView;
 
 /**
  * ImageDownloadTask. 
+ * <p>
+ * 1 つの ImageView に対して 1 つの AsyncTask を使います。
+ * 処理の中身は {@link ImageRequest} と共通です。
+ * {@link HasImage.Util} は {@link ImageLoader} を使うので、ここは直接 AsyncTask として使いたい場合用です。
+ * </p>
  * 
  * @author <a href="mailto:kodama-t@klab.jp">Takuya KODAMA</a> (kodamta-t)
  * @author <a href="mailto:sano-n@klab.jp">Naohide Sano</a> (sano-n)
@@ -48,6 +52,42 @@ public final class ImageDownloadTask extends AsyncTask<String, Void, Bitmap> {
         void onDownloadFailure(ImageView imageView);
     }
 
+    /**
+     * 表示するサイズに合わせて縮小した Bitmap を取得できる {@link ImageDownloadHelper} です。
+     * <p>
+     * {@link ImageRequest} は ImageView のサイズ (もしくは {@link ImageRequest#setTargetSize(int, int)})
+     * が分かっている場合こちらを呼び、キャッシュのキーにサイズを含めます。
+     * </p>
+     * @see BitmapDecoder
+     */
+    public static interface SizedImageDownloadHelper<T> extends ImageDownloadHelper<T> {
+        /**
+         * width x height 以上で、なるべく小さくデコードした Bitmap を取得する処理を書いてください。
+         * @param param
+         * @param width 表示する幅 [px]
+         * @param height 表示する高さ [px]
+         */
+        Bitmap doDownload(T param, int width, int height) throws IOException;
+    }
+
+    /**
+     * 取得 (ネットワーク、ファイル等の I/O) とデコード (CPU) を分けられる {@link ImageDownloadHelper} です。
+     * <p>
+     * {@link ImageLoader} は {@link #fetch(Object)} を I/O 用のスレッドで、
+     * デコードは {@link BitmapDecoder} で CPU 用のスレッドで行います。
+     * 取得したデータはそのままディスクキャッシュに保存されるので、サイズ違いの要求でも再ダウンロードしません。
+     * {@link #doDownload(Object)} は ImageRequest からは呼ばれません。
+     * </p>
+     */
+    public static interface StagedImageDownloadHelper<T> extends ImageDownloadHelper<T> {
+        /**
+         * デコードする前の画像のデータを取得する処理を書いてください。
+         * @param param
+         * @return null when not found
+         */
+        byte[] fetch(T param) throws IOException;
+    }
+
     /** */
     public static class DefaultImageDownloadHelper implements ImageDownloadHelper<String> {
         /** イメージがロード中に設定する画像 */
@@ -72,9 +112,27 @@ public final class ImageDownloadTask extends AsyncTask<String, Void, Bitmap> {
         public void onDownloadFailure(ImageView imageView) {
             imageView.setImageDrawable(noImageDrawable);
         }
-        /* ファイル名で Bitmap を読み込みます。 */
+        /* ファイル名で Bitmap を読み込みます。JPEG は RGB_565 になります。 */
         public Bitmap doDownload(String param) throws IOException {
-            return BitmapFactory.decodeFile(param);
+            return BitmapDecoder.decodeFile(param, 0, 0);
+        }
+    }
+
+    /**
+     * {@link DefaultImageDownloadHelper} を ImageView のサイズに縮小して読み込むようにしたものです。
+     * キャッシュのキーにサイズが含まれるようになるので、使う場合は明示的に指定してください。
+     */
+    public static class SizedDefaultImageDownloadHelper extends DefaultImageDownloadHelper implements SizedImageDownloadHelper<String> {
+        /**
+         * @param loadingDrawable イメージがロード中に設定する画像
+         * @param noImageDrawable イメージがロード出来なかった場合に設定する画像
+         */
+        public SizedDefaultImageDownloadHelper(Drawable loadingDrawable, Drawable noImageDrawable) {
+            super(loadingDrawable, noImageDrawable);
+        }
+        /* ファイル名で Bitmap を縮小して読み込みます。 */
+        public Bitmap doDownload(String param, int width, int height) throws IOException {
+            return BitmapDecoder.decodeFile(param, width, height);
         }
     }
 
@@ -82,16 +140,18 @@ public final class ImageDownloadTask extends AsyncTask<String, Void, Bitmap> {
     /** 重複チェックに使用 (kodama-t オリジナルすばらしい！) */
     private Integer tag;
 
-static int queueInCount;
-static int executeCount;
-static int cancelCount;
-static int doneCount;
-static int errorCount;
-static int runningCount;
-
     /** */
     private ImageDownloadHelper<String> imageDownloadHelper;
 
+    /** 実際の処理, {@link #prepare(String, String)} で作成 */
+    private ImageRequest request;
+
+    /** {@link #prepare(String, String)} されずに実行された場合用, UI スレッドで求めた view のサイズ */
+    private int[] targetSize;
+
+    /** 実行されて {@link ImageStats} に数えたかどうか, 作られただけで実行されないタスクもある */
+    private boolean counted;
+
     /**
      * @param imageView to be set after download, should be set position to tag
      */
@@ -99,14 +159,32 @@ static int runningCount;
         this.imageView = imageView;
         this.tag = (Integer) (imageView.getTag()); // これ以降 tag の値が変わるということやんね
         this.imageDownloadHelper = imageDownloadHelper;
-++queueInCount;
-++runningCount;
+    }
+
+    /**
+     * UI スレッドで、url に対する要求を作ります。view のサイズを読むので {@link #execute(String...)} の前に呼んでください。
+     * 返された要求の {@link ImageRequest#getCacheKey()} がこのタスクがキャッシュするキーです。
+     *
+     * @param postfix key for cache (when null, ignored)
+     */
+    ImageRequest prepare(String url, String postfix) {
+        if (request == null || !request.getUrl().equals(url)) {
+            request = new ImageRequest(url, postfix, imageView, tag, imageDownloadHelper);
+        }
+        return request;
     }
 
     @Override
     protected void onPreExecute() {
+        if (request == null) {
+            targetSize = BitmapDecoder.getTargetSize(imageView);
+        }
         imageDownloadHelper.onPreDownload(imageView);
+        BitmapTracker.unbind(imageView);
         super.onPreExecute();
+ImageStats.queued.incrementAndGet();
+ImageStats.running.incrementAndGet();
+        counted = true;
     }
 
     /**
@@ -114,39 +192,29 @@ static int runningCount;
      *  
      * @param urls [0] image URL
      * @return null when download failed or canceled
-     * @see DetailImageDownloadTask
+     * @see ImageRequest#load()
      */
     @Override
     protected Bitmap doInBackground(String... urls) {
+        if (request == null || !request.getUrl().equals(urls[0])) { // prepare() されずに実行された
+            this.request = new ImageRequest(urls[0], null, imageView, tag, imageDownloadHelper, targetSize);
+        }
         try {
-            if (tag != null && tag.equals(imageView.getTag())) {
-                // HasImage での Cache チェックとダブルけど
-                // このタスク自体遅延してかぶる場合があるので
-                Bitmap image = ImageCache.getImage(urls[0]);
-                if (image == null) {
-Log.i("ImageDownloadTask", "loading: " + tag + ", " + urls[0]);
-                    image = imageDownloadHelper.doDownload(urls[0]);
-++executeCount;
-                    if (image != null) {
-                        ImageCache.setImage(urls[0], image);
-                    } else {
-Log.w("ImageDownloadTask", "canceled : " + urls[0]);
-                    }
-                }
-                return image;
+            if (request.isTagMatched()) {
+                return request.load();
             } else {
 Log.w("ImageDownloadTask", "tag not match 1: " + tag);
                 return null;
             }
 } catch (java.io.FileNotFoundException e) {
- ++errorCount;
+ ImageStats.errors.incrementAndGet();
  Log.e("ImageDownloadTask", urls[0] + ": " + e.toString());
  return null;
         } catch (NullPointerException e) { // for at org.klab.iphoroid.net.HTTPClient.getByteArrayFromURL(HTTPClient.java:62)
  Log.w("ImageDownloadTask", "may be canceled?: " + urls[0]);
             return null;
         } catch (Exception e) {
-++errorCount;
+ImageStats.errors.incrementAndGet();
             Log.e("ImageDownloadTask", urls[0] + ": " + e.getMessage(), e);
             return null;
         }
@@ -157,27 +225,25 @@ Log.w("ImageDownloadTask", "tag not match 1: " + tag);
         super.onCancelled();
         imageDownloadHelper.onDownloadSuccess(imageView);
 Log.w("ImageDownloadTask", "canceled: " + tag);
-++cancelCount;
---runningCount;
+ImageStats.cancelled.incrementAndGet();
+        if (counted) {
+ImageStats.running.decrementAndGet();
+        }
     }
 
+    /**
+     * 結果の設定は {@link FrameBatcher} で他の画像とまとめて次のフレームで行います。
+     */
     @Override
-    protected void onPostExecute(Bitmap result) {
-        if (result != null) {
-            if (tag != null && tag.equals(imageView.getTag())) { // view 使いまわされ対策
-                imageView.setImageBitmap(result);
-Log.i("ImageDownloadTask", "done: " + tag);
-++doneCount;
-            } else {
-Log.w("ImageDownloadTask", "tag not match 2: " + tag);
-            }
-        } else {
-            if (tag != null && tag.equals(imageView.getTag())) {
-                imageDownloadHelper.onDownloadFailure(imageView);
+    protected void onPostExecute(final Bitmap result) {
+        FrameBatcher.getInstance().post(new Runnable() {
+            public void run() {
+                if (isCancelled()) {
+                    request.cancel();
+                }
+                request.deliver(result);
             }
-        }
-        imageDownloadHelper.onDownloadSuccess(imageView);
---runningCount;
-Log.w("ImageDownloadTask", "in: " + queueInCount + ", exec: " + executeCount + ", error: " + errorCount + ", cancel: " + cancelCount + ", done: " + doneCount + ", run: " + runningCount);
+        });
+ImageStats.running.decrementAndGet();
     }
 }
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * 画像読み込み専用のスケジューラです。
+ * <p>
+ * AsyncTask のプールを使わず、専用のワーカースレッドで {@link ImageRequest} を処理します。
+ * <ul>
+ * <li>キューは上限付きで、溢れた場合は新しい要求を拒否するのではなく一番優先度の低いものを捨てます。</li>
+ * <li>同じ優先度では表示範囲 ({@link #setViewport(ImageScope, int, int)}) に近い行から取り出します。
+ * 表示範囲から遠く、画面から外れた ImageView の要求はキャンセルします。</li>
+ * <li>表示範囲が同じ距離なら LIFO で取り出すので、スクロールして今見えたばかりの行から読み込まれます。</li>
+ * <li>取り出した時点で view が使いまわされていたり古すぎる要求は読み込まずに捨てます。</li>
+ * <li>同じキー ({@link ImageRequest#getCacheKey()}, URL + postfix) の要求はまとめて 1 回だけ読み込み、
+ * 結果を待っているすべての ImageView に配ります。</li>
+ * </ul>
+ * この方針は Android に依存しない {@link ImageQueue} にまとめてあり、JVM 上で計測できます。
+ * </p>
+ * <p>
+ * helper が {@link ImageDownloadTask.StagedImageDownloadHelper} の要求は
+ * 取得 (I/O, {@link #setWorkerCount(int)}) とデコード (CPU, {@link #setDecoderCount(int)}) を別のスレッドで行います。
+ * ネットワークが遅くてもデコードが止まらず、デコードが重くても取得が止まりません。
+ * デコード待ちのキューも上限付きで、溢れた場合は取得したスレッドがそのままデコードします。
+ * 各段の待ち数と処理時間は {@link ImageStats#snapshot()} で参照できます。
+ * </p>
+ * <p>
+ * 結果は {@link FrameBatcher} で 1 フレーム分まとめて ImageView に設定するので、
+ * 同時にたくさん読み込みが終わっても再描画は 1 回で済みます。
+ * </p>
+ */
+public class ImageLoader {
+
+    /** */
+    private static ImageLoader instance;
+
+    /** */
+    public static synchronized ImageLoader getInstance() {
+        if (instance == null) {
+            instance = new ImageLoader();
+        }
+        return instance;
+    }
+
+    /** @return null when not created yet */
+    static synchronized ImageLoader peekInstance() {
+        return instance;
+    }
+
+    /** 待ち状態の要求, 取り出す順番、捨てる要求は {@link ImageQueue} が決める */
+    private final ImageQueue<ImageRequest> queue = new ImageQueue<ImageRequest>();
+
+    /** ワーカースレッド (取得用) 数 */
+    private int workerCount = 3;
+
+    /** デコード待ちのキューの最大数 */
+    private static final int DECODE_QUEUE_SIZE = 8;
+
+    /** デコード用のスレッド, 既定は CPU 数 */
+    private final ThreadPoolExecutor decoder;
+
+    /** 生きているワーカースレッド */
+    private final List<Worker> workers = new ArrayList<Worker>();
+
+    /** スレッド名用 */
+    private int workerId;
+
+    /** UI スレッドへの配送, フレーム単位でまとめる */
+    private final FrameBatcher batcher = FrameBatcher.getInstance();
+
+    /** */
+    private ImageLoader() {
+        int decoderCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+        decoder = new ThreadPoolExecutor(decoderCount, decoderCount, 30, TimeUnit.SECONDS,
+                                         new ArrayBlockingQueue<Runnable>(DECODE_QUEUE_SIZE),
+                                         new ThreadFactory() {
+            private int decoderId;
+            public Thread newThread(final Runnable runnable) {
+                return new Thread("ImageDecoder-" + ++decoderId) {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                };
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /** */
+    public synchronized void setMaxQueueSize(int maxQueueSize) {
+        List<ImageRequest> dropped = new ArrayList<ImageRequest>();
+        queue.setMaxQueueSize(maxQueueSize, dropped);
+        postDiscard(dropped, "overflow");
+    }
+
+    /** @param maxAge [msec], 0 以下で無制限 */
+    public synchronized void setMaxAge(long maxAge) {
+        queue.setMaxAge(maxAge);
+    }
+
+    /** @param lifo true で同じ優先度なら新しいものから */
+    public synchronized void setLifo(boolean lifo) {
+        queue.setLifo(lifo);
+    }
+
+    /**
+     * @param downgradeDistance 表示範囲からこれ以上離れた行は低い優先度にする [行]
+     * @param cancelDistance 表示範囲からこれ以上離れ、画面から外れた行の要求はキャンセルする [行]
+     */
+    public synchronized void setDistances(int downgradeDistance, int cancelDistance) {
+        queue.setDistances(downgradeDistance, cancelDistance);
+    }
+
+    /**
+     * scope の画面の表示範囲を設定します。UI スレッドから呼んでください。
+     * 待っている要求の優先度が表示範囲からの距離で決まり直し、遠くて画面から外れたものはキャンセルされます。
+     * 要求の位置は {@link ImageRequest#getTag()} です。
+     *
+     * @param first 先頭の表示中の位置
+     * @param last 最後の表示中の位置 (含む)
+     * @see HasImage.ListViewOnScrollListener
+     * @see HasImage.AdapterViewOnScrollListener
+     */
+    public synchronized void setViewport(ImageScope scope, int first, int last) {
+        List<ImageRequest> dropped = new ArrayList<ImageRequest>();
+        queue.setViewport(scope, first, last, dropped);
+        postDiscard(dropped, "out of viewport");
+    }
+
+    /** */
+    public synchronized int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * ワーカースレッド数を変更します。減らした場合は処理中のものが終わり次第終了します。
+     */
+    public synchronized void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount < 1");
+        }
+        this.workerCount = workerCount;
+        if (!queue.isEmpty()) {
+            ensureWorkers();
+        }
+        notifyAll();
+    }
+
+    /** */
+    public int getDecoderCount() {
+        return decoder.getCorePoolSize();
+    }
+
+    /**
+     * デコード用のスレッド数を変更します。
+     */
+    public synchronized void setDecoderCount(int decoderCount) {
+        if (decoderCount < 1) {
+            throw new IllegalArgumentException("decoderCount < 1");
+        }
+        if (decoderCount > decoder.getMaximumPoolSize()) {
+            decoder.setMaximumPoolSize(decoderCount);
+            decoder.setCorePoolSize(decoderCount);
+        } else {
+            decoder.setCorePoolSize(decoderCount);
+            decoder.setMaximumPoolSize(decoderCount);
+        }
+    }
+
+    /** 現在の (取得待ちの) キューの長さ */
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /** 現在のデコード待ちのキューの長さ */
+    public int getDecodeQueueSize() {
+        return decoder.getQueue().size();
+    }
+
+    /**
+     * 要求をキューに入れます。UI スレッドから呼んでください。
+     * 同じキーを読み込み中の場合はキューに入れずにその結果を待ちます。
+     */
+    public synchronized void submit(ImageRequest request) {
+        ImageScope scope = request.getScope();
+        if (scope != null) {
+            if (scope.isReleased()) { // 閉じた画面の要求
+                request.cancel();
+ImageStats.cancelled.incrementAndGet();
+                return;
+            }
+            scope.add(request.getCacheKey());
+        }
+        List<ImageRequest> dropped = new ArrayList<ImageRequest>();
+        if (!queue.offer(request, System.currentTimeMillis(), dropped)) {
+Log.d("ImageLoader", "coalesced: " + request);
+ImageStats.coalesced.incrementAndGet();
+            return;
+        }
+ImageStats.queued.incrementAndGet();
+        postDiscard(dropped, "overflow");
+        ensureWorkers();
+        notify();
+    }
+
+    /**
+     * 要求をキューから取り除きます。
+     * @return true when the request was waiting
+     */
+    public synchronized boolean remove(ImageRequest request) {
+        if (request.getThumbnail() != null) {
+            queue.remove(request.getThumbnail());
+        }
+        return queue.remove(request);
+    }
+
+    /** 待っている要求をすべて破棄します。 */
+    public synchronized void clear() {
+        List<ImageRequest> dropped = queue.clear();
+ImageStats.cancelled.addAndGet(dropped.size());
+        for (ImageRequest request : dropped) {
+            postDiscard(request);
+        }
+    }
+
+    /**
+     * scope の要求をキャンセルします。
+     * 待っているものはキューから取り除き、読み込み中のものは結果を設定しません。
+     *
+     * @return キャンセルした数
+     */
+    public synchronized int cancel(ImageScope scope) {
+        List<ImageRequest> dropped = new ArrayList<ImageRequest>();
+        int count = queue.cancel(scope, dropped);
+ImageStats.cancelled.addAndGet(count);
+        for (ImageRequest request : dropped) {
+            postDiscard(request);
+        }
+        return count;
+    }
+
+    /** */
+    private void ensureWorkers() {
+        while (workers.size() < workerCount) {
+            Worker worker = new Worker(++workerId);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * 一番優先度の高い要求を取り出します。古いものはここで捨てます。
+     * キューに同じキーの要求があれば一緒に取り出して読み込み中にします。
+     *
+     * @return null when the worker should exit
+     */
+    private synchronized ImageRequest takeRequest(Worker worker) throws InterruptedException {
+        while (true) {
+            if (workers.size() > workerCount) {
+                workers.remove(worker);
+                return null;
+            }
+
+            List<ImageRequest> dropped = new ArrayList<ImageRequest>();
+            ImageRequest best = queue.poll(System.currentTimeMillis(), dropped);
+            postDiscard(dropped, "stale");
+            if (best != null) {
+ImageStats.queueWait.record(queue.getLastWait());
+ImageStats.running.incrementAndGet();
+                return best;
+            }
+            wait();
+        }
+    }
+
+    /** 捨てた要求を数えて UI スレッドで通知します。 */
+    private void postDiscard(List<ImageRequest> dropped, String reason) {
+        for (ImageRequest request : dropped) {
+Log.d("ImageLoader", reason + ": " + request);
+ImageStats.dropped.incrementAndGet();
+            postDiscard(request);
+        }
+    }
+
+    /** */
+    private void postDiscard(final ImageRequest request) {
+        batcher.post(new Runnable() {
+            public void run() {
+                request.discard();
+            }
+        });
+    }
+
+    /**
+     * 取得したデータをデコード用のスレッドでデコードして配ります。
+     * デコード待ちが一杯の場合は呼んだスレッドでデコードします。
+     */
+    private void decode(final ImageRequest request, final byte[] data) {
+        decoder.execute(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                Bitmap result = null;
+                try {
+                    result = request.decode(data);
+                } catch (RuntimeException e) {
+ImageStats.errors.incrementAndGet();
+Log.e("ImageLoader", request.getUrl() + ": " + e.getMessage(), e);
+                } catch (OutOfMemoryError e) {
+ImageStats.errors.incrementAndGet();
+Log.e("ImageLoader", request.getUrl() + ": " + e.toString());
+                    onOutOfMemory();
+                } finally { // 何が起きても読み込み中から外して待っている要求に配る
+ImageStats.decodeTime.record(System.currentTimeMillis() - start);
+                    postDeliver(request, result);
+                }
+            }
+        });
+    }
+
+    /** {@link MemoryGovernor} に UI スレッドで通知します。 */
+    private void onOutOfMemory() {
+        batcher.post(new Runnable() {
+            public void run() {
+                MemoryGovernor.onLowMemory();
+            }
+        });
+    }
+
+    /**
+     * 読み込みの終わった要求と、同じキーで待っていた要求すべてに結果を配ります。
+     * それぞれ tag が一致するものだけに設定されます (tag は設定する時に確認します)。
+     */
+    private void postDeliver(ImageRequest request, final Bitmap result) {
+        final List<ImageRequest> waiters;
+        synchronized (this) {
+            waiters = queue.complete(request.getCacheKey());
+        }
+ImageStats.running.decrementAndGet();
+        batcher.post(new Runnable() {
+            public void run() {
+                for (ImageRequest waiter : waiters) {
+                    waiter.deliver(result);
+                }
+            }
+        });
+    }
+
+    /** */
+    private class Worker extends Thread {
+
+        /** */
+        Worker(int id) {
+            super("ImageLoader-" + id);
+        }
+
+        /**
+         * 予期しない例外で終わる場合も {@link #workers} から外すので、次の {@link ImageLoader#submit(ImageRequest)} で補充されます。
+         */
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                while (true) {
+                    ImageRequest request = takeRequest(this);
+                    if (request == null) {
+                        return;
+                    }
+                    load(request);
+                }
+            } catch (InterruptedException e) {
+Log.d("ImageLoader", "interrupted: " + getName());
+            } finally {
+                synchronized (ImageLoader.this) {
+                    workers.remove(this);
+                }
+            }
+        }
+
+        /**
+         * 1 件読み込みます。何が起きても結果 (失敗は null) を配るので、同じキーの要求が読み込み中のまま残りません。
+         */
+        private void load(ImageRequest request) {
+            long start = System.currentTimeMillis();
+            Bitmap result = null;
+            boolean decoding = false;
+            try {
+                byte[] data = null;
+                try {
+                    if (request.isStaged()) {
+                        result = ImageCache.getImageToBind(request.getCacheKey());
+                        if (result == null) {
+                            data = request.fetch();
+                        }
+                    } else {
+                        result = request.load();
+                    }
+                } catch (java.io.FileNotFoundException e) {
+ImageStats.errors.incrementAndGet();
+Log.e("ImageLoader", request.getUrl() + ": " + e.toString());
+                } catch (Exception e) {
+ImageStats.errors.incrementAndGet();
+Log.e("ImageLoader", request.getUrl() + ": " + e.getMessage(), e);
+                } catch (OutOfMemoryError e) {
+ImageStats.errors.incrementAndGet();
+Log.e("ImageLoader", request.getUrl() + ": " + e.toString());
+                    onOutOfMemory();
+                }
+ImageStats.fetchTime.record(System.currentTimeMillis() - start);
+                if (data != null) {
+                    decoding = true; // 以降はデコードの方で必ず配る
+                    decode(request, data);
+                }
+            } finally {
+                if (!decoding) {
+                    postDeliver(request, result);
+                }
+            }
+        }
+    }
+}
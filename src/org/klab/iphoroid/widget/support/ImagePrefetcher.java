@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import org.klab.iphoroid.widget.adpterview.OnScrollListener;
+import org.klab.iphoroid.widget.support.ImageDownloadTask.ImageDownloadHelper;
+
+
+/**
+ * スクロールの方向と速さから、これから表示される行の画像を先読みします。
+ * <p>
+ * {@link HasImage.ListViewOnScrollListener#setPrefetcher(ImagePrefetcher)} 等で設定すると
+ * onScroll の firstVisibleItem の変化から速度 [item/sec] を推定し、
+ * 進行方向の先 N 行分の画像を {@link ImageRequest#PRIORITY_LOW} で {@link ImageLoader} に要求します。
+ * 行が見えた時にはデコード済みでキャッシュにあるので、ローディング画像がちらつきません。
+ * </p>
+ * <pre>
+ *     ImagePrefetcher prefetcher = new ImagePrefetcher(new ImagePrefetcher.UrlProvider() {
+ *         public String getImageUrl(int position) {
+ *             return adapter.getItem(position).getImageUrl();
+ *         }
+ *     }, imageDownloadHelper);
+ *     onScrollListener.setPrefetcher(prefetcher);
+ * </pre>
+ * UI スレッドから使用してください。
+ */
+public class ImagePrefetcher {
+
+    /** アダプタの位置から画像の URL を返します。 */
+    public static interface UrlProvider {
+        /**
+         * @return null when the item has no image
+         */
+        String getImageUrl(int position);
+    }
+
+    /** */
+    private final UrlProvider urlProvider;
+
+    /** */
+    private final ImageDownloadHelper<String> imageDownloadHelper;
+
+    /** 最低限先読みする行数 */
+    private int minDistance = 4;
+
+    /** 最大で先読みする行数 */
+    private int maxDistance = 16;
+
+    /** 速度に対して何秒先まで先読みするか [msec] */
+    private long lookAhead = 500;
+
+    /** デコードするサイズ [px], 0 で元のサイズ */
+    private int width, height;
+
+    /** 加工, null で加工しない */
+    private ImageTransformation transformation;
+
+    /** 先読みした画面, null で画面に属さない */
+    private ImageScope scope;
+
+    /** 推定したスクロール速度 [item/sec], 負は上 (左) 方向 */
+    private float velocity;
+
+    /** */
+    private int lastFirstVisibleItem = -1;
+
+    /** [msec] */
+    private long lastTime;
+
+    /** 先読み済みの範囲 (両端を含む), 同じ行を何度も要求しないように */
+    private int prefetchedFrom = -1, prefetchedTo = -1;
+
+    /** */
+    private int scrollState = OnScrollListener.SCROLL_STATE_IDLE;
+
+    /**
+     * @param urlProvider アダプタの位置から URL を返す
+     * @param imageDownloadHelper 画像の取得に使う, {@link ImageDownloadHelper#doDownload(Object)} だけが呼ばれます
+     */
+    public ImagePrefetcher(UrlProvider urlProvider, ImageDownloadHelper<String> imageDownloadHelper) {
+        this.urlProvider = urlProvider;
+        this.imageDownloadHelper = imageDownloadHelper;
+    }
+
+    /** @param minDistance 最低限先読みする行数 */
+    public void setMinDistance(int minDistance) {
+        this.minDistance = minDistance;
+    }
+
+    /** @param maxDistance 最大で先読みする行数 */
+    public void setMaxDistance(int maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    /** @param lookAhead 速度に対して何秒先まで先読みするか [msec] */
+    public void setLookAhead(long lookAhead) {
+        this.lookAhead = lookAhead;
+    }
+
+    /**
+     * 表示される ImageView と同じサイズを指定してください。
+     * {@link ImageDownloadTask.SizedImageDownloadHelper} の場合、サイズが違うとキャッシュのキーが一致しません。
+     *
+     * @see ImageRequest#setTargetSize(int, int)
+     */
+    public void setTargetSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * 表示される要求と同じ加工を指定してください。加工が違うとキャッシュのキーが一致しません。
+     *
+     * @see ImageRequest#setTransformation(ImageTransformation)
+     */
+    public void setTransformation(ImageTransformation transformation) {
+        this.transformation = transformation;
+    }
+
+    /**
+     * 画面を閉じた時に先読みもキャンセルされるように、表示する画面のスコープを指定してください。
+     *
+     * @see ImageScope#of(android.content.Context)
+     */
+    public void setScope(ImageScope scope) {
+        this.scope = scope;
+    }
+
+    /** 推定したスクロール速度 [item/sec] */
+    public float getVelocity() {
+        return velocity;
+    }
+
+    /**
+     * スクロールの状態が変化した際に呼んでください。FLING 中は先読みしません。
+     */
+    public void onScrollStateChanged(int scrollState) {
+        this.scrollState = scrollState;
+        if (scrollState == OnScrollListener.SCROLL_STATE_IDLE) {
+            velocity = 0;
+        }
+    }
+
+    /**
+     * スクロールが行われた際に呼んでください。
+     *
+     * @param firstVisibleItem 表示領域内の最初のアイテムのインデックス
+     * @param visibleItemCount 表示領域内のアイテム数
+     * @param totalItemCount 全てのアイテム数
+     */
+    public void onScroll(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        long now = System.currentTimeMillis();
+        if (lastFirstVisibleItem == -1) {
+            lastFirstVisibleItem = firstVisibleItem;
+            lastTime = now;
+        } else if (firstVisibleItem != lastFirstVisibleItem) {
+            long dt = Math.max(1, now - lastTime);
+            float v = (firstVisibleItem - lastFirstVisibleItem) * 1000f / dt;
+            velocity = velocity == 0 ? v : velocity * 0.5f + v * 0.5f;
+            lastFirstVisibleItem = firstVisibleItem;
+            lastTime = now;
+        } else if (prefetchedFrom != -1) {
+            // 行が変わっていないので先読みの範囲も変わらない
+            return;
+        }
+
+        if (scrollState == OnScrollListener.SCROLL_STATE_FLING) {
+            return;
+        }
+        prefetch(firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+
+    /** */
+    private void prefetch(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        int distance = (int) Math.min(maxDistance, minDistance + Math.abs(velocity) * lookAhead / 1000);
+        int from, to;
+        if (velocity >= 0) {
+            from = firstVisibleItem + visibleItemCount;
+            to = Math.min(totalItemCount - 1, from + distance - 1);
+        } else {
+            to = firstVisibleItem - 1;
+            from = Math.max(0, to - distance + 1);
+        }
+        if (from > to) {
+            return;
+        }
+
+        // 遠い方から要求すると LIFO で近い方が先に処理される
+        for (int i = 0; i <= to - from; i++) {
+            int position = velocity >= 0 ? to - i : from + i;
+            if (position >= prefetchedFrom && position <= prefetchedTo) {
+                continue;
+            }
+            String url = urlProvider.getImageUrl(position);
+            if (url == null || NegativeCache.isFailed(url)) {
+                continue;
+            }
+            ImageRequest request = new ImageRequest(url, null, imageDownloadHelper);
+            request.setTargetSize(width, height);
+            request.setTransformation(transformation);
+            if (ImageCache.isCached(request.getCacheKey())) {
+                continue;
+            }
+            request.setPriority(ImageRequest.PRIORITY_LOW);
+            request.setScope(scope);
+            ImageLoader.getInstance().submit(request);
+        }
+        prefetchedFrom = from;
+        prefetchedTo = to;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+
+/**
+ * {@link ImageLoader} の取得待ちのキューです。どの要求をいつ読み込むか、捨てるかを決めます。
+ * <p>
+ * Android のクラスを使わないので JVM 上でも動きます。
+ * 要求は {@link Entry} で抽象化してあり、時刻も呼ぶ側が渡すので、
+ * 記録したスクロールを偽の取得、デコードで再生してスケジューリング、キャッシュ、
+ * まとめ、キャンセルの振る舞いを端末無しで計測できます (bench/ の ImagePipelineBench)。
+ * </p>
+ * <ul>
+ * <li>優先度 ({@link Entry#getPriority()}) の高いものから取り出します。</li>
+ * <li>同じ優先度では表示範囲 ({@link #setViewport(Object, int, int, List)}) に近いものから、
+ * 同じ距離なら LIFO (新しいものから) で取り出します。</li>
+ * <li>上限を超えた場合は一番後回しになるものを捨てます。</li>
+ * <li>同じキー ({@link Entry#getCacheKey()}) の要求はまとめて取り出し、読み込み中のキーの要求は結果を待たせます。</li>
+ * </ul>
+ * thread unsafe です。呼ぶ側で同期してください。
+ */
+public class ImageQueue<E extends ImageQueue.Entry> {
+
+    /** キューに入れる要求です。 */
+    public interface Entry {
+        /** 同じ値の要求は 1 回だけ読み込みます。 */
+        String getCacheKey();
+        /** 大きいほど先 */
+        int getPriority();
+        /** @return アダプタの位置, null で位置を持たない */
+        Integer getTag();
+        /** @return 表示範囲を区別する画面, null で画面に属さない */
+        Object getScope();
+        /** キャンセルされたり view が使いまわされ、読み込む必要が無くなったかどうか */
+        boolean isStale(long now, long maxAge);
+        /** 画面に表示されているかどうか, 表示範囲から遠くても表示されていればキャンセルしない */
+        boolean isVisible();
+        /** */
+        void cancel();
+    }
+
+    /** 表示範囲から遠いものの優先度, {@link ImageRequest#PRIORITY_LOW} と同じ */
+    public static final int PRIORITY_DOWNGRADED = -1;
+
+    /** キューに入った順番と時刻 */
+    private static class Slot<E> {
+        final E entry;
+        final long sequence;
+        /** [msec] */
+        final long queuedAt;
+        Slot(E entry, long sequence, long queuedAt) {
+            this.entry = entry;
+            this.sequence = sequence;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    /** 待ち状態の要求 */
+    private final List<Slot<E>> queue = new ArrayList<Slot<E>>();
+
+    /** 読み込み中のキーと、その結果を待っている要求 (読み込んでいる要求自身を含む) */
+    private final Map<String, List<E>> inFlight = new HashMap<String, List<E>>();
+
+    /** 画面ごとの表示範囲 {first, last} */
+    private final Map<Object, int[]> viewports = new WeakHashMap<Object, int[]>();
+
+    /** キューの最大数 */
+    private int maxQueueSize = 48;
+
+    /** これより古い要求は捨てる [msec], 0 以下で無制限 */
+    private long maxAge = 15 * 1000;
+
+    /** true で同じ優先度なら新しいものから */
+    private boolean lifo = true;
+
+    /** 表示範囲からこれ以上離れたものは優先度を {@link #PRIORITY_DOWNGRADED} 以下にする */
+    private int downgradeDistance = 8;
+
+    /** 表示範囲からこれ以上離れ、表示されていないものはキャンセルする */
+    private int cancelDistance = 24;
+
+    /** */
+    private long sequence;
+
+    /** 直前の {@link #poll(long, List)} で取り出したものの待ち時間 [msec] */
+    private long lastWait;
+
+    /**
+     * @param dropped 溢れて捨てたものを追加する
+     */
+    public void setMaxQueueSize(int maxQueueSize, List<E> dropped) {
+        this.maxQueueSize = maxQueueSize;
+        trim(dropped);
+    }
+
+    /** @param maxAge [msec], 0 以下で無制限 */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /** @param lifo true で同じ優先度なら新しいものから */
+    public void setLifo(boolean lifo) {
+        this.lifo = lifo;
+    }
+
+    /**
+     * @param downgradeDistance 表示範囲からこれ以上離れたものは低い優先度にする [行]
+     * @param cancelDistance 表示範囲からこれ以上離れ、表示されていないものはキャンセルする [行]
+     */
+    public void setDistances(int downgradeDistance, int cancelDistance) {
+        this.downgradeDistance = downgradeDistance;
+        this.cancelDistance = cancelDistance;
+    }
+
+    /** 待っている数 */
+    public int size() {
+        return queue.size();
+    }
+
+    /** */
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /** 直前の {@link #poll(long, List)} で取り出したものの待ち時間 [msec] */
+    public long getLastWait() {
+        return lastWait;
+    }
+
+    /**
+     * 要求を入れます。同じキーを読み込み中の場合はキューに入れずにその結果を待たせます。
+     *
+     * @param now [msec]
+     * @param dropped 溢れて捨てたものを追加する
+     * @return false when coalesced with the loading one
+     */
+    public boolean offer(E entry, long now, List<E> dropped) {
+        List<E> waiters = inFlight.get(entry.getCacheKey());
+        if (waiters != null) {
+            waiters.add(entry);
+            return false;
+        }
+        queue.add(new Slot<E>(entry, ++sequence, now));
+        trim(dropped);
+        return true;
+    }
+
+    /**
+     * 要求をキューから取り除きます。
+     * @return true when the entry was waiting
+     */
+    public boolean remove(E entry) {
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i).entry == entry) {
+                queue.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 待っている要求をすべてキャンセルして取り除きます。
+     * @return 取り除いたもの
+     */
+    public List<E> clear() {
+        List<E> entries = new ArrayList<E>();
+        for (Slot<E> slot : queue) {
+            slot.entry.cancel();
+            entries.add(slot.entry);
+        }
+        queue.clear();
+        return entries;
+    }
+
+    /**
+     * scope の要求をキャンセルします。待っているものは取り除いて dropped に追加し、
+     * 読み込み中のものは {@link Entry#cancel()} だけします。
+     *
+     * @return キャンセルした数
+     */
+    public int cancel(Object scope, List<E> dropped) {
+        viewports.remove(scope);
+        int count = 0;
+        for (int i = queue.size() - 1; i >= 0; i--) {
+            E entry = queue.get(i).entry;
+            if (entry.getScope() == scope) {
+                queue.remove(i);
+                entry.cancel();
+                dropped.add(entry);
+                count++;
+            }
+        }
+        for (List<E> waiters : inFlight.values()) {
+            for (E entry : waiters) {
+                if (entry.getScope() == scope) {
+                    entry.cancel();
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * scope の表示範囲を設定します。表示範囲から遠く、表示されていないものはキャンセルして dropped に追加します。
+     *
+     * @param first 先頭の表示中の位置
+     * @param last 最後の表示中の位置 (含む)
+     * @return false when the viewport is not changed
+     */
+    public boolean setViewport(Object scope, int first, int last, List<E> dropped) {
+        int[] viewport = viewports.get(scope);
+        if (viewport != null && viewport[0] == first && viewport[1] == last) {
+            return false;
+        }
+        viewports.put(scope, new int[] { first, last });
+        for (int i = queue.size() - 1; i >= 0; i--) {
+            E entry = queue.get(i).entry;
+            if (distanceOf(entry) >= cancelDistance && !entry.isVisible()) {
+                queue.remove(i);
+                entry.cancel();
+                dropped.add(entry);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 一番先に読み込むべき要求を取り出します。古いものはここで取り除いて dropped に追加します。
+     * キューに同じキーの要求があれば一緒に取り出して、読み込み中として登録します。
+     * 読み込みが終わったら {@link #complete(String)} を呼んでください。
+     *
+     * @param now [msec]
+     * @return null when no entry is waiting
+     */
+    public E poll(long now, List<E> dropped) {
+        Slot<E> best = null;
+        for (int i = queue.size() - 1; i >= 0; i--) {
+            Slot<E> slot = queue.get(i);
+            if (slot.entry.isStale(now, maxAge)) {
+                queue.remove(i);
+                dropped.add(slot.entry);
+            } else if (best == null || isPrior(slot, best)) {
+                best = slot;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        queue.remove(best);
+        String key = best.entry.getCacheKey();
+        List<E> waiters = new ArrayList<E>();
+        waiters.add(best.entry);
+        for (int i = queue.size() - 1; i >= 0; i--) {
+            if (queue.get(i).entry.getCacheKey().equals(key)) {
+                waiters.add(queue.remove(i).entry);
+            }
+        }
+        inFlight.put(key, waiters);
+        lastWait = now - best.queuedAt;
+        return best.entry;
+    }
+
+    /**
+     * 読み込みが終わったキーを読み込み中から外します。
+     * @return 結果を待っていた要求 (読み込んだ要求自身を含む), 読み込み中でなければ空
+     */
+    public List<E> complete(String key) {
+        List<E> waiters = inFlight.remove(key);
+        return waiters != null ? waiters : new ArrayList<E>();
+    }
+
+    /**
+     * 表示範囲からの距離 [行] を返します。範囲内は 0 です。
+     * @return 0 when the position or the viewport is unknown
+     */
+    public int distanceOf(E entry) {
+        Integer position = entry.getTag();
+        if (position == null || entry.getScope() == null) {
+            return 0;
+        }
+        int[] viewport = viewports.get(entry.getScope());
+        if (viewport == null) {
+            return 0;
+        }
+        if (position < viewport[0]) {
+            return viewport[0] - position;
+        } else if (position > viewport[1]) {
+            return position - viewport[1];
+        } else {
+            return 0;
+        }
+    }
+
+    /** 表示範囲から遠いものは {@link #PRIORITY_DOWNGRADED} 扱いにします。 */
+    private int priorityOf(E entry, int distance) {
+        int priority = entry.getPriority();
+        return distance >= downgradeDistance ? Math.min(priority, PRIORITY_DOWNGRADED) : priority;
+    }
+
+    /** a が b より先に処理されるべきか */
+    private boolean isPrior(Slot<E> a, Slot<E> b) {
+        int distanceA = distanceOf(a.entry);
+        int distanceB = distanceOf(b.entry);
+        int priorityA = priorityOf(a.entry, distanceA);
+        int priorityB = priorityOf(b.entry, distanceB);
+        if (priorityA != priorityB) {
+            return priorityA > priorityB;
+        }
+        if (distanceA != distanceB) {
+            return distanceA < distanceB;
+        }
+        return lifo ? a.sequence > b.sequence : a.sequence < b.sequence;
+    }
+
+    /** 上限を超えた分、一番後回しになるものから捨てます。 */
+    private void trim(List<E> dropped) {
+        while (queue.size() > maxQueueSize) {
+            int worst = 0;
+            for (int i = 1; i < queue.size(); i++) {
+                if (isPrior(queue.get(worst), queue.get(i))) {
+                    worst = i;
+                }
+            }
+            dropped.add(queue.remove(worst).entry);
+        }
+    }
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.io.FileNotFoundException;
+import java.lang.ref.WeakReference;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.widget.ImageView;
+
+import org.klab.iphoroid.widget.support.ImageDownloadTask.ImageDownloadHelper;
+import org.klab.iphoroid.widget.support.ImageDownloadTask.SizedImageDownloadHelper;
+import org.klab.iphoroid.widget.support.ImageDownloadTask.StagedImageDownloadHelper;
+
+
+/**
+ * ImageView 1 つに対する画像の読み込み要求です。
+ * <p>
+ * {@link ImageLoader} のキューに入れられ、ワーカースレッドで {@link #load()}、
+ * UI スレッドで {@link #deliver(Bitmap)} が呼ばれます。
+ * ImageView は WeakReference で保持するので、要求が残っていても画面はリークしません。
+ * ImageView の無い要求はキャッシュに読み込むだけの先読みになります。
+ * </p>
+ * <p>
+ * helper が {@link SizedImageDownloadHelper} の場合は ImageView のサイズに縮小してデコードし、
+ * キャッシュのキーは URL + postfix + "@幅x高さ" になります。
+ * </p>
+ * <p>
+ * helper が {@link StagedImageDownloadHelper} の場合は {@link #fetch()} と {@link #decode(byte[])} に分けて処理でき、
+ * {@link ImageLoader} はそれぞれ別のスレッドで実行します。
+ * </p>
+ * <p>
+ * {@link #setTransformation(ImageTransformation)} で加工を指定すると、デコードの後に同じスレッドで加工し、
+ * キャッシュのキーは更に "|" + {@link ImageTransformation#getKey()} が付きます。
+ * </p>
+ * <p>
+ * {@link #setThumbnail(String)}、{@link #setThumbnailSize(int, int)} で小さい画像を指定すると、
+ * 先にそれを表示し、本来の画像が読み込まれたら置き換えます。
+ * 小さい画像も同じ {@link ImageLoader}、{@link ImageCache} で読み込まれる普通の要求です。
+ * </p>
+ */
+public class ImageRequest implements ImageQueue.Entry {
+
+    /** 優先度: プリフェッチ等 */
+    public static final int PRIORITY_LOW = -1;
+    /** 優先度: 通常 */
+    public static final int PRIORITY_NORMAL = 0;
+    /** 優先度: 表示中 */
+    public static final int PRIORITY_HIGH = 1;
+
+    /** */
+    private final String url;
+
+    /** キャッシュのキー, サイズを含まない */
+    private final String baseKey;
+
+    /** キャッシュのキー, {@link #setTargetSize(int, int)}、{@link #setTransformation(ImageTransformation)} で変わる */
+    private String cacheKey;
+
+    /** デコードするサイズ [px], 0 で元のサイズ */
+    private int width, height;
+
+    /** デコード後の加工, null で加工しない */
+    private ImageTransformation transformation;
+
+    /** null when prefetching */
+    private final WeakReference<ImageView> imageViewRef;
+
+    /** 重複チェックに使用, 生成時の ImageView#getTag() */
+    private final Integer tag;
+
+    /** */
+    private final ImageDownloadHelper<String> imageDownloadHelper;
+
+    /** */
+    private int priority = PRIORITY_NORMAL;
+
+    /** 要求した画面, null で画面に属さない */
+    private ImageScope scope;
+
+    /** 先に表示する小さい画像の要求, null で無し */
+    private ImageRequest thumbnail;
+
+    /** 小さい画像の要求の場合、本来の要求 */
+    private ImageRequest full;
+
+    /** 結果を設定した, UI スレッドでのみ使用 */
+    private boolean delivered;
+
+    /** 小さい画像を表示中, UI スレッドでのみ使用 */
+    private boolean thumbnailShown;
+
+    /** [msec] */
+    private final long createdAt = System.currentTimeMillis();
+
+    /** */
+    private volatile boolean cancelled;
+
+    /**
+     * @param url for image
+     * @param postfix key for cache (when null, ignored)
+     * @param imageView to be set after download, should be set position to tag
+     */
+    public ImageRequest(String url, String postfix, ImageView imageView, ImageDownloadHelper<String> imageDownloadHelper) {
+        this(url, postfix, imageView, (Integer) imageView.getTag(), imageDownloadHelper);
+    }
+
+    /**
+     * ImageView に設定せずキャッシュに読み込むだけの要求を作成します。
+     *
+     * @param url for image
+     * @param postfix key for cache (when null, ignored)
+     * @see ImagePrefetcher
+     */
+    public ImageRequest(String url, String postfix, ImageDownloadHelper<String> imageDownloadHelper) {
+        this.url = url;
+        this.baseKey = postfix != null ? url + postfix : url;
+        this.cacheKey = baseKey;
+        this.imageViewRef = null;
+        this.tag = null;
+        this.imageDownloadHelper = imageDownloadHelper;
+    }
+
+    /**
+     * view のサイズを読むので UI スレッドで呼んでください。
+     * @param tag 生成時の tag, これ以降 ImageView の tag が変わると使いまわされたとみなす
+     */
+    ImageRequest(String url, String postfix, ImageView imageView, Integer tag, ImageDownloadHelper<String> imageDownloadHelper) {
+        this(url, postfix, imageView, tag, imageDownloadHelper, BitmapDecoder.getTargetSize(imageView));
+    }
+
+    /**
+     * @param tag 生成時の tag, これ以降 ImageView の tag が変わると使いまわされたとみなす
+     * @param size UI スレッドで {@link BitmapDecoder#getTargetSize(android.view.View)} で求めた { width, height }
+     */
+    ImageRequest(String url, String postfix, ImageView imageView, Integer tag, ImageDownloadHelper<String> imageDownloadHelper, int[] size) {
+        this.url = url;
+        this.baseKey = postfix != null ? url + postfix : url;
+        this.cacheKey = baseKey;
+        this.imageViewRef = new WeakReference<ImageView>(imageView);
+        this.tag = tag;
+        this.imageDownloadHelper = imageDownloadHelper;
+        setTargetSize(size[0], size[1]);
+    }
+
+    /** 小さい画像の要求を作ります。 */
+    private ImageRequest(ImageRequest full, String url, String baseKey) {
+        this.url = url;
+        this.baseKey = baseKey;
+        this.cacheKey = baseKey;
+        this.imageViewRef = full.imageViewRef;
+        this.tag = full.tag;
+        this.imageDownloadHelper = full.imageDownloadHelper;
+        this.full = full;
+        this.priority = PRIORITY_HIGH; // 小さいので先に
+        this.scope = full.scope;
+        this.transformation = full.transformation;
+        setTargetSize(full.width, full.height);
+    }
+
+    /** */
+    public String getUrl() {
+        return url;
+    }
+
+    /** */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * デコードするサイズを指定します。{@link ImageLoader} に入れる前に呼んでください。
+     * helper が {@link SizedImageDownloadHelper} でない場合は無視されます。
+     *
+     * @param width [px], 0 以下で元のサイズ
+     * @param height [px], 0 以下で元のサイズ
+     */
+    public void setTargetSize(int width, int height) {
+        if ((imageDownloadHelper instanceof SizedImageDownloadHelper || isStaged()) && width > 0 && height > 0) {
+            this.width = width;
+            this.height = height;
+        } else {
+            this.width = 0;
+            this.height = 0;
+        }
+        updateCacheKey();
+    }
+
+    /**
+     * デコード後の加工を指定します。{@link ImageLoader} に入れる前に呼んでください。
+     * HasImage の postfix の代わりに使えます。小さい画像にも同じ加工をします。
+     *
+     * @param transformation null で加工しない
+     */
+    public void setTransformation(ImageTransformation transformation) {
+        this.transformation = transformation;
+        updateCacheKey();
+        if (thumbnail != null) {
+            thumbnail.setTransformation(transformation);
+        }
+    }
+
+    /** */
+    public ImageTransformation getTransformation() {
+        return transformation;
+    }
+
+    /** URL + postfix [+ "@幅x高さ"] [+ "|加工"] */
+    private void updateCacheKey() {
+        String key = baseKey;
+        if (width > 0) {
+            key += "@" + width + "x" + height;
+        }
+        if (transformation != null) {
+            key += "|" + transformation.getKey();
+        }
+        this.cacheKey = key;
+    }
+
+    /**
+     * ディスクキャッシュのキーです。デコード前のデータを保存するのでサイズを含みません。
+     * ディスクキャッシュを使うのは {@link StagedImageDownloadHelper} の場合だけです。
+     */
+    public String getDiskKey() {
+        return baseKey;
+    }
+
+    /** 取得とデコードを分けられるかどうか */
+    public boolean isStaged() {
+        return imageDownloadHelper instanceof StagedImageDownloadHelper;
+    }
+
+    /** [px], 0 で元のサイズ */
+    public int getWidth() {
+        return width;
+    }
+
+    /** [px], 0 で元のサイズ */
+    public int getHeight() {
+        return height;
+    }
+
+    /** @return null when the view has been collected or prefetching */
+    public ImageView getImageView() {
+        return imageViewRef != null ? imageViewRef.get() : null;
+    }
+
+    /** UI スレッドから呼んでください。 */
+    public boolean isVisible() {
+        ImageView imageView = getImageView();
+        return imageView != null && imageView.isShown();
+    }
+
+    /** ImageView の無い先読みの要求かどうか */
+    public boolean isPrefetch() {
+        return imageViewRef == null;
+    }
+
+    /** */
+    public Integer getTag() {
+        return tag;
+    }
+
+    /** */
+    public ImageDownloadHelper<String> getImageDownloadHelper() {
+        return imageDownloadHelper;
+    }
+
+    /** */
+    public int getPriority() {
+        return priority;
+    }
+
+    /** @param priority {@link #PRIORITY_LOW} 等 */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /** @return null when not scoped */
+    public ImageScope getScope() {
+        return scope;
+    }
+
+    /**
+     * 要求した画面を指定します。{@link ImageLoader} に入れる前に呼んでください。
+     * キャッシュのキーは {@link ImageLoader#submit(ImageRequest)} の時にスコープに記録され、
+     * スコープを {@link ImageScope#release()} するとキャンセルされ、キャッシュも捨てられます。
+     *
+     * @param scope null で画面に属さない
+     */
+    public void setScope(ImageScope scope) {
+        this.scope = scope;
+        if (thumbnail != null) {
+            thumbnail.scope = scope;
+        }
+    }
+
+    /**
+     * 先に表示する小さい画像の URL を指定します。{@link ImageLoader} に入れる前に呼んでください。
+     * 小さい画像は本来の画像より先に読み込まれ、本来の画像が設定された後に届いた場合は捨てられます。
+     *
+     * @param url null で指定しない
+     */
+    public void setThumbnail(String url) {
+        this.thumbnail = url != null ? new ImageRequest(this, url, url) : null;
+    }
+
+    /**
+     * 同じ画像を小さくデコードしたものを先に表示します。{@link ImageLoader} に入れる前に呼んでください。
+     * helper が {@link StagedImageDownloadHelper} の場合だけ有効で、ディスクキャッシュにデータがある時だけ使われます
+     * (ダウンロードを 2 回しないように)。
+     *
+     * @param width [px]
+     * @param height [px]
+     */
+    public void setThumbnailSize(int width, int height) {
+        if (isStaged()) {
+            this.thumbnail = new ImageRequest(this, url, baseKey);
+            thumbnail.setTargetSize(width, height);
+        } else {
+            this.thumbnail = null;
+        }
+    }
+
+    /** @return null when not set */
+    public ImageRequest getThumbnail() {
+        return thumbnail;
+    }
+
+    /** 小さい画像の要求かどうか */
+    public boolean isThumbnail() {
+        return full != null;
+    }
+
+    /**
+     * 小さい画像を読み込む価値があるかどうかを返します。
+     * 最近失敗した URL や、同じ URL でディスクキャッシュに無い (ダウンロードが必要な) ものは読み込みません。
+     */
+    boolean isThumbnailLoadable() {
+        if (NegativeCache.isFailed(url)) {
+            return false;
+        }
+        return !baseKey.equals(full.baseKey) || ImageCache.isDiskCached(getDiskKey());
+    }
+
+    /**
+     * UI スレッドで、キャッシュにある小さい画像を表示します。
+     * @return false when not cached or already delivered
+     */
+    boolean showThumbnail(Bitmap image) {
+        ImageView imageView = getImageView();
+        if (imageView == null || full.delivered || full.cancelled) {
+            return false;
+        }
+        imageView.setImageBitmap(image);
+        BitmapTracker.bind(imageView, image);
+        full.thumbnailShown = true;
+        return true;
+    }
+
+    /** [msec] */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /** */
+    public void cancel() {
+        cancelled = true;
+        if (thumbnail != null) {
+            thumbnail.cancel();
+        }
+    }
+
+    /** */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * ImageView がまだこの要求のものかどうかを返します。
+     * @return false when the view has been reused or collected
+     */
+    public boolean isTagMatched() {
+        ImageView imageView = getImageView();
+        return imageView != null && tag != null && tag.equals(imageView.getTag());
+    }
+
+    /**
+     * キャンセルされたか、view が使いまわされたか、maxAge [msec] より古いものは不要です。
+     */
+    public boolean isStale(long now, long maxAge) {
+        return cancelled || (!isPrefetch() && !isTagMatched()) || (maxAge > 0 && now - createdAt > maxAge);
+    }
+
+    /**
+     * UI スレッドで読み込み前に呼んでください。
+     */
+    public void onPreLoad() {
+        ImageView imageView = getImageView();
+        if (imageView != null) {
+            imageDownloadHelper.onPreDownload(imageView);
+            BitmapTracker.unbind(imageView);
+        }
+    }
+
+    /**
+     * 画像を取得します。ワーカースレッドで呼んでください。
+     * キャッシュ (メモリ、ディスクの順) に無ければダウンロードし、取得した画像は自動的にキャッシュします。
+     * ディスクキャッシュはダウンロードしたままのデータを保存するので、
+     * {@link StagedImageDownloadHelper} の場合だけ使います (Bitmap を返す helper はメモリキャッシュのみ)。
+     * 見つからなかった URL は {@link NegativeCache} に記録します。
+     *
+     * @return null when download failed or canceled
+     */
+    public Bitmap load() throws Exception {
+        // HasImage での Cache チェックとダブルけど
+        // 要求自体遅延してかぶる場合があるので
+        Bitmap image = ImageCache.getImageToBind(cacheKey);
+        if (image == null && isStaged()) {
+            byte[] data = fetch();
+            return data != null ? decode(data) : null;
+        }
+        if (image == null) {
+Log.i("ImageRequest", "loading: " + tag + ", " + url);
+            try {
+                if (width > 0) {
+                    image = ((SizedImageDownloadHelper<String>) imageDownloadHelper).doDownload(url, width, height);
+                } else {
+                    image = imageDownloadHelper.doDownload(url);
+                }
+            } catch (FileNotFoundException e) {
+                NegativeCache.setFailed(url);
+                throw e;
+            }
+ImageStats.executed.incrementAndGet();
+            if (image != null && transformation != null) {
+                // helper の返した画像は helper のもの (共有されているかもしれない) なので recycle() しない
+                image = transformation.transform(image);
+            }
+            if (image != null) {
+                NegativeCache.remove(url);
+                ImageCache.setImage(cacheKey, image);
+            } else {
+Log.w("ImageRequest", "canceled : " + url);
+                if (!cancelled) {
+                    NegativeCache.setFailed(url);
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * デコード前のデータを取得します。I/O スレッドで呼んでください。
+     * ディスクキャッシュに無ければ {@link StagedImageDownloadHelper#fetch(Object)} で取得して保存します。
+     * メモリキャッシュは見ないので、先に {@link ImageCache#getImage(String)} で確認してください。
+     *
+     * @return null when not found
+     * @throws ClassCastException when the helper is not {@link StagedImageDownloadHelper}
+     */
+    public byte[] fetch() throws Exception {
+        byte[] data = ImageCache.getDiskBytes(baseKey);
+        if (data != null) {
+ImageStats.diskHits.incrementAndGet();
+        } else {
+Log.i("ImageRequest", "fetching: " + tag + ", " + url);
+            try {
+                data = ((StagedImageDownloadHelper<String>) imageDownloadHelper).fetch(url);
+            } catch (FileNotFoundException e) {
+                NegativeCache.setFailed(url);
+                throw e;
+            }
+ImageStats.executed.incrementAndGet();
+            if (data != null) {
+                NegativeCache.remove(url);
+                ImageCache.setDiskBytes(baseKey, data);
+            } else {
+Log.w("ImageRequest", "not found : " + url);
+                if (!cancelled) {
+                    NegativeCache.setFailed(url);
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * {@link #fetch()} で取得したデータを要求のサイズでデコード、加工し、キャッシュします。CPU 用のスレッドで呼んでください。
+     *
+     * @return null when the data is broken
+     */
+    public Bitmap decode(byte[] data) {
+        Bitmap image = BitmapDecoder.decodeByteArray(data, width, height);
+        if (image != null && transformation != null) {
+            Bitmap transformed = transformation.transform(image);
+            if (transformed != image) {
+                image.recycle(); // どこからも参照されていない
+            }
+            image = transformed;
+        }
+        if (image != null) {
+            ImageCache.setImage(cacheKey, image);
+        } else {
+Log.w("ImageRequest", "broken: " + url);
+            ImageCache.removeDiskImage(baseKey);
+            NegativeCache.setFailed(url);
+        }
+        return image;
+    }
+
+    /**
+     * UI スレッドで結果を ImageView に設定します。
+     *
+     * @param result null when download failed
+     */
+    public void deliver(Bitmap result) {
+        ImageView imageView = getImageView();
+        if (imageView == null) {
+            return;
+        }
+        if (full != null) { // 小さい画像は本来の画像より後なら捨てる, helper には通知しない
+            if (result != null && !cancelled && isTagMatched()) {
+                showThumbnail(result);
+Log.i("ImageRequest", "thumbnail: " + tag);
+            }
+            return;
+        }
+        delivered = true;
+        if (result != null) {
+            if (!cancelled && isTagMatched()) { // view 使いまわされ対策
+                imageView.setImageBitmap(result);
+                BitmapTracker.bind(imageView, result);
+Log.i("ImageRequest", "done: " + tag);
+ImageStats.done.incrementAndGet();
+ImageStats.timeToDisplay.record(System.currentTimeMillis() - createdAt);
+            } else {
+Log.w("ImageRequest", "tag not match 2: " + tag);
+            }
+        } else {
+            if (!cancelled && isTagMatched() && !thumbnailShown) { // 小さい画像を表示中ならそのまま
+                imageDownloadHelper.onDownloadFailure(imageView);
+                BitmapTracker.unbind(imageView);
+            }
+        }
+        imageDownloadHelper.onDownloadSuccess(imageView);
+    }
+
+    /**
+     * UI スレッドで、読み込まずに破棄されたことを通知します。
+     */
+    public void discard() {
+        ImageView imageView = getImageView();
+        if (imageView != null && full == null) {
+            imageDownloadHelper.onDownloadSuccess(imageView);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ImageRequest[" + tag + ", " + cacheKey + ", priority: " + priority + "]";
+    }
+}
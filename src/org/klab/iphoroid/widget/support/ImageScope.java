@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.content.Context;
+import android.util.Log;
+
+
+/**
+ * 画像の要求とキャッシュを Activity 等の寿命ごとにまとめます。
+ * <p>
+ * {@link HasImage.Util#setImage(Context, ImageRequest)} 等は context ごとの
+ * スコープ ({@link #of(Context)}) に要求とキャッシュのキーを記録します。
+ * {@link HasImage.Util#onDestroy(android.app.Activity)} で {@link #release()} すると、
+ * 読み込み中の要求をキャンセルし、他のスコープが使っていないキャッシュを
+ * エキスパイアを待たずに捨てて recycle() します。戻るボタンで閉じた画面のメモリがすぐに返ります。
+ * </p>
+ * <p>
+ * スコープは context そのもの (hashCode() ではない) で区別し、context を弱参照で持つのでリークしません。
+ * release() したスコープも context が GC されるまで残すので、閉じた後の onScroll() 等で作り直されることはありません。
+ * 記録するキーは最近使った {@link #MAX_KEYS} 個までです (それより古いものはキャッシュにも残っていない)。
+ * </p>
+ * UI スレッドから使用してください。
+ */
+public class ImageScope {
+
+    /** 1 つのスコープで記録するキーの最大数 */
+    public static final int MAX_KEYS = 256;
+
+    /** context ごとのスコープ, context は WeakHashMap のキーなので GC される */
+    private static final Map<Context, ImageScope> scopes = new WeakHashMap<Context, ImageScope>();
+
+    /** ログ用, context への参照は持たない */
+    private final String name;
+
+    /** このスコープで使用したキャッシュのキー, アクセス順で {@link #MAX_KEYS} 個まで */
+    private final Map<String, Boolean> keys = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+
+    /** */
+    private boolean released;
+
+    /** */
+    private ImageScope(String name) {
+        this.name = name;
+    }
+
+    /**
+     * context のスコープを返します。無ければ作成します。
+     * release() 済みの場合はそのスコープを返します (要求は捨てられます)。
+     */
+    public static synchronized ImageScope of(Context context) {
+        ImageScope scope = scopes.get(context);
+        if (scope == null) {
+            scope = new ImageScope(context.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(context)));
+            scopes.put(context, scope);
+        }
+        return scope;
+    }
+
+    /**
+     * context のスコープを作成せずに返します。
+     * @return null when no image has been requested in the context
+     */
+    public static synchronized ImageScope find(Context context) {
+        return scopes.get(context);
+    }
+
+    /**
+     * context のスコープがあれば {@link #release()} します。
+     */
+    public static void release(Context context) {
+        ImageScope scope = find(context);
+        if (scope != null) {
+            scope.release();
+        }
+    }
+
+    /** release() されていないスコープの数 */
+    public static synchronized int size() {
+        int count = 0;
+        for (ImageScope scope : scopes.values()) {
+            if (!scope.released) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * このスコープで key のキャッシュを使用することを記録します。
+     * release() した後は何もしません。
+     */
+    public void add(String key) {
+        synchronized (ImageScope.class) {
+            if (!released) {
+                keys.put(key, Boolean.TRUE);
+            }
+        }
+    }
+
+    /** */
+    public boolean isReleased() {
+        synchronized (ImageScope.class) {
+            return released;
+        }
+    }
+
+    /**
+     * このスコープの読み込み中の要求をキャンセルし、
+     * 他のスコープが使っていないキャッシュを捨てて、表示されていなければ recycle() します。
+     * ImageView は先に {@link BitmapTracker#unbind(android.widget.ImageView)} しておいてください。
+     */
+    public void release() {
+        List<String> unused = new ArrayList<String>();
+        synchronized (ImageScope.class) {
+            if (released) {
+                return;
+            }
+            released = true;
+            for (String key : keys.keySet()) {
+                if (!isUsedByOthers(key)) {
+                    unused.add(key);
+                }
+            }
+            keys.clear();
+        }
+        int canceled = ImageLoader.getInstance().cancel(this);
+        int count = 0;
+        for (String key : unused) { // ImageCache のロックはスコープのロックの外で
+            if (ImageCache.evict(key)) {
+                count++;
+            }
+        }
+        ImageCache.recycleEvicted();
+Log.i("ImageScope", "released: " + name + ", canceled: " + canceled + ", evicted: " + count);
+    }
+
+    /** 他の release() されていないスコープが key を使っているか */
+    private boolean isUsedByOthers(String key) {
+        for (ImageScope scope : scopes.values()) {
+            if (scope != this && !scope.released && scope.keys.containsKey(key)) {
+                return true; // 他の画面でも表示している
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageScope[" + name + "]";
+    }
+}
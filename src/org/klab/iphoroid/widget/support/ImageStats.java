@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 画像読み込みの計測値です。
+ * <p>
+ * どのスレッドから更新しても構わないようにすべて atomic で持ちます。
+ * スクロールが引っかかる原因がキュー待ち、取得、デコード、表示のどこにあるかを
+ * {@link #snapshot()} で確認できます。
+ * </p>
+ * <pre>
+ *     Log.d("Stats", ImageStats.snapshot().toString());
+ * </pre>
+ */
+public abstract class ImageStats {
+
+    /** キューに入った数 */
+    static final AtomicInteger queued = new AtomicInteger();
+    /** ダウンロード (取得) した数 */
+    static final AtomicInteger executed = new AtomicInteger();
+    /** キャンセルされた数 */
+    static final AtomicInteger cancelled = new AtomicInteger();
+    /** ImageView に設定した数 */
+    static final AtomicInteger done = new AtomicInteger();
+    /** エラーの数 */
+    static final AtomicInteger errors = new AtomicInteger();
+    /** 実行中の数 */
+    static final AtomicInteger running = new AtomicInteger();
+    /** 同じキーの読み込みにまとめられた数 */
+    static final AtomicInteger coalesced = new AtomicInteger();
+    /** 読み込まずに捨てられた数 (キューの溢れ、古い要求) */
+    static final AtomicInteger dropped = new AtomicInteger();
+    /** メモリキャッシュのヒット数 */
+    static final AtomicInteger memoryHits = new AtomicInteger();
+    /** メモリキャッシュのミス数 */
+    static final AtomicInteger memoryMisses = new AtomicInteger();
+    /** ディスクキャッシュのヒット数 */
+    static final AtomicInteger diskHits = new AtomicInteger();
+
+    /** キューに入ってから取り出されるまで [msec] */
+    static final Histogram queueWait = new Histogram();
+    /** 取得 (ディスクキャッシュ、ダウンロード) の時間 [msec] */
+    static final Histogram fetchTime = new Histogram();
+    /** デコード (加工を含む) の時間 [msec] */
+    static final Histogram decodeTime = new Histogram();
+    /** 要求が作られてから ImageView に設定されるまで [msec] */
+    static final Histogram timeToDisplay = new Histogram();
+
+    /** 現在の値をコピーします。 */
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    /** すべての値を 0 にします。実行中の数はそのままです。 */
+    public static void reset() {
+        queued.set(0);
+        executed.set(0);
+        cancelled.set(0);
+        done.set(0);
+        errors.set(0);
+        coalesced.set(0);
+        dropped.set(0);
+        memoryHits.set(0);
+        memoryMisses.set(0);
+        diskHits.set(0);
+        queueWait.reset();
+        fetchTime.reset();
+        decodeTime.reset();
+        timeToDisplay.reset();
+    }
+
+    /**
+     * 2 のべき乗 [msec] を境界にしたヒストグラムです。
+     * バケット i は (2^(i-1), 2^i] msec、最後のバケットはそれ以上です。
+     */
+    public static class Histogram {
+
+        /** 1, 2, 4, ..., 8192 msec と それ以上 */
+        public static final int BUCKETS = 15;
+
+        /** */
+        private final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKETS);
+
+        /** */
+        private final AtomicLong total = new AtomicLong();
+
+        /** */
+        private final AtomicLong max = new AtomicLong();
+
+        /** バケット i の上限 [msec], 最後のバケットは Long.MAX_VALUE */
+        public static long upperBound(int i) {
+            return i < BUCKETS - 1 ? 1L << i : Long.MAX_VALUE;
+        }
+
+        /** @param time [msec] */
+        public void record(long time) {
+            if (time < 0) {
+                time = 0;
+            }
+            int i = time <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(time - 1));
+            counts.incrementAndGet(i);
+            total.addAndGet(time);
+            long current;
+            while (time > (current = max.get())) {
+                if (max.compareAndSet(current, time)) {
+                    break;
+                }
+            }
+        }
+
+        /** */
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            total.set(0);
+            max.set(0);
+        }
+
+        /** */
+        HistogramSnapshot snapshot() {
+            int[] values = new int[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                values[i] = counts.get(i);
+            }
+            return new HistogramSnapshot(values, total.get(), max.get());
+        }
+    }
+
+    /** {@link Histogram} のある時点の値です。 */
+    public static class HistogramSnapshot {
+
+        /** バケットごとの数 */
+        private final int[] counts;
+
+        /** */
+        private final long count;
+
+        /** [msec] */
+        private final long total;
+
+        /** [msec] */
+        private final long max;
+
+        /** */
+        HistogramSnapshot(int[] counts, long total, long max) {
+            this.counts = counts;
+            long count = 0;
+            for (int value : counts) {
+                count += value;
+            }
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /** 計測した数 */
+        public long getCount() {
+            return count;
+        }
+
+        /** [msec] */
+        public long getAverage() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        /** [msec] */
+        public long getMax() {
+            return max;
+        }
+
+        /** @see Histogram#upperBound(int) */
+        public int getBucketCount(int i) {
+            return counts[i];
+        }
+
+        /**
+         * @param percentile 0 ~ 100
+         * @return そのパーセンタイルを含むバケットの上限 [msec], 最後のバケットの場合は最大値
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(count * percentile / 100);
+            long sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                sum += counts[i];
+                if (sum >= threshold && counts[i] > 0) {
+                    return Math.min(Histogram.upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "n: " + count + ", avg: " + getAverage() + ", p50: " + getPercentile(50) + ", p90: " + getPercentile(90) + ", p99: " + getPercentile(99) + ", max: " + max;
+        }
+    }
+
+    /** {@link ImageStats} のある時点の値です。 */
+    public static class Snapshot {
+        /** */
+        public final int queued = ImageStats.queued.get();
+        /** */
+        public final int executed = ImageStats.executed.get();
+        /** */
+        public final int cancelled = ImageStats.cancelled.get();
+        /** */
+        public final int done = ImageStats.done.get();
+        /** */
+        public final int errors = ImageStats.errors.get();
+        /** */
+        public final int running = ImageStats.running.get();
+        /** */
+        public final int coalesced = ImageStats.coalesced.get();
+        /** */
+        public final int dropped = ImageStats.dropped.get();
+        /** */
+        public final int memoryHits = ImageStats.memoryHits.get();
+        /** */
+        public final int memoryMisses = ImageStats.memoryMisses.get();
+        /** */
+        public final int diskHits = ImageStats.diskHits.get();
+        /** {@link ImageLoader} の取得待ちの数 */
+        public final int fetchQueueSize;
+        /** {@link ImageLoader} のデコード待ちの数 */
+        public final int decodeQueueSize;
+        /** */
+        public final HistogramSnapshot queueWait = ImageStats.queueWait.snapshot();
+        /** */
+        public final HistogramSnapshot fetchTime = ImageStats.fetchTime.snapshot();
+        /** */
+        public final HistogramSnapshot decodeTime = ImageStats.decodeTime.snapshot();
+        /** */
+        public final HistogramSnapshot timeToDisplay = ImageStats.timeToDisplay.snapshot();
+
+        /** ImageLoader がまだ無い場合は作らずに 0 とする */
+        Snapshot() {
+            ImageLoader loader = ImageLoader.peekInstance();
+            fetchQueueSize = loader != null ? loader.getQueueSize() : 0;
+            decodeQueueSize = loader != null ? loader.getDecodeQueueSize() : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "in: " + queued + ", exec: " + executed + ", error: " + errors + ", cancel: " + cancelled + ", done: " + done + ", run: " + running +
+                   ", coalesced: " + coalesced + ", dropped: " + dropped +
+                   ", memory: " + memoryHits + "/" + (memoryHits + memoryMisses) + ", disk: " + diskHits +
+                   ", queue: " + fetchQueueSize + "/" + decodeQueueSize +
+                   "\n  wait: [" + queueWait + "]\n  fetch: [" + fetchTime + "]\n  decode: [" + decodeTime + "]\n  display: [" + timeToDisplay + "]";
+        }
+    }
+}
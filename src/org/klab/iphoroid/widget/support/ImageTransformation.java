@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.LinearGradient;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff.Mode;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader.TileMode;
+
+
+/**
+ * デコードした画像に施す加工です。
+ * <p>
+ * {@link ImageRequest#setTransformation(ImageTransformation)} で設定すると
+ * {@link ImageLoader} のデコード用のスレッドで実行され、加工後の画像が
+ * {@link #getKey()} を含んだキーでキャッシュされます。
+ * 反射等の重い加工も UI スレッドで毎回行わずに済みます。
+ * </p>
+ * <pre>
+ *     request.setTransformation(new ImageTransformation.Chain(
+ *         new ImageTransformation.Crop(96, 96),
+ *         new ImageTransformation.RoundCorner(8)));
+ * </pre>
+ * 元の画像は recycle() しないでください。
+ */
+public interface ImageTransformation {
+
+    /**
+     * @param source 加工する画像, 変更しないでください
+     * @return 加工した画像, 何もしない場合は source
+     */
+    Bitmap transform(Bitmap source);
+
+    /**
+     * キャッシュのキーに使用します。加工の種類とパラメータが同じなら同じ値を返してください。
+     */
+    String getKey();
+
+    /** 複数の加工を順番に行います。 */
+    public static class Chain implements ImageTransformation {
+        /** */
+        private final ImageTransformation[] transformations;
+        /** */
+        public Chain(ImageTransformation... transformations) {
+            this.transformations = transformations;
+        }
+        /* 途中の画像は recycle() します。 */
+        public Bitmap transform(Bitmap source) {
+            Bitmap bitmap = source;
+            for (ImageTransformation transformation : transformations) {
+                Bitmap result = transformation.transform(bitmap);
+                if (bitmap != source && bitmap != result) {
+                    bitmap.recycle();
+                }
+                bitmap = result;
+            }
+            return bitmap;
+        }
+        public String getKey() {
+            StringBuilder sb = new StringBuilder();
+            for (ImageTransformation transformation : transformations) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(transformation.getKey());
+            }
+            return sb.toString();
+        }
+    }
+
+    /** 縦横比を無視して width x height に拡大縮小します。 */
+    public static class Resize implements ImageTransformation {
+        /** */
+        private final int width, height;
+        /** null の場合アルファの有無で決める */
+        private final Config config;
+        /** アルファの無い画像は RGB_565 にします。 */
+        public Resize(int width, int height) {
+            this(width, height, null);
+        }
+        /** */
+        public Resize(int width, int height, Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+        public Bitmap transform(Bitmap source) {
+            Bitmap dest = Bitmap.createBitmap(width, height, config != null ? config : BitmapDecoder.configOf(source));
+            Canvas canvas = new Canvas(dest);
+            canvas.drawBitmap(source, new Rect(0, 0, source.getWidth(), source.getHeight()), new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+            return dest;
+        }
+        public String getKey() {
+            return "resize(" + width + "x" + height + (config != null ? "," + config : "") + ")";
+        }
+    }
+
+    /** 縦横比を保ったまま width x height を覆うように拡大縮小し、はみ出した部分を切り取ります。 */
+    public static class Crop implements ImageTransformation {
+        /** */
+        private final int width, height;
+        /** */
+        public Crop(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+        public Bitmap transform(Bitmap source) {
+            int srcWidth = source.getWidth();
+            int srcHeight = source.getHeight();
+            // width / srcWidth と height / srcHeight の大きい方で縮小した時の切り取り範囲
+            int cropWidth, cropHeight;
+            if ((long) srcWidth * height > (long) srcHeight * width) {
+                cropHeight = srcHeight;
+                cropWidth = (int) ((long) srcHeight * width / height);
+            } else {
+                cropWidth = srcWidth;
+                cropHeight = (int) ((long) srcWidth * height / width);
+            }
+            int left = (srcWidth - cropWidth) / 2;
+            int top = (srcHeight - cropHeight) / 2;
+            Bitmap dest = Bitmap.createBitmap(width, height, BitmapDecoder.configOf(source));
+            Canvas canvas = new Canvas(dest);
+            canvas.drawBitmap(source, new Rect(left, top, left + cropWidth, top + cropHeight), new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+            return dest;
+        }
+        public String getKey() {
+            return "crop(" + width + "x" + height + ")";
+        }
+    }
+
+    /** 画像の下部に反射エフェクトを付けます。高さは 1.5 倍になります。 */
+    public static class Reflection implements ImageTransformation {
+        /** 元画像と反射エフェクト間の距離 */
+        private final int gap;
+        /** @param gap 元画像と反射エフェクト間の距離 */
+        public Reflection(int gap) {
+            this.gap = gap;
+        }
+        public Bitmap transform(Bitmap source) {
+            Matrix matrix = new Matrix();
+            matrix.preScale(1, -1);
+
+            int width = source.getWidth();
+            int height = source.getHeight();
+            int destHeight = height + height / 2;
+            Bitmap effect = Bitmap.createBitmap(source, 0, height / 2, width, height / 2, matrix, false);
+            Bitmap dest = Bitmap.createBitmap(width, destHeight, Config.ARGB_8888);
+            Canvas canvas = new Canvas(dest);
+
+            canvas.drawBitmap(source, 0, 0, null);
+            canvas.drawRect(0, height, width, height + gap, new Paint());
+            canvas.drawBitmap(effect, 0, height + gap, null);
+
+            Paint paint = new Paint();
+            paint.setShader(new LinearGradient(0, height, 0, destHeight + gap, 0x70ffffff, 0x00ffffff, TileMode.CLAMP));
+            paint.setXfermode(new PorterDuffXfermode(Mode.DST_IN));
+            canvas.drawRect(0, height, width, destHeight + gap, paint);
+
+            if (effect != null && !effect.isRecycled()) {
+                effect.recycle();
+            }
+
+            return dest;
+        }
+        public String getKey() {
+            return "reflection(" + gap + ")";
+        }
+    }
+
+    /** 角を丸めます。角の外側は透明になります。 */
+    public static class RoundCorner implements ImageTransformation {
+        /** [px] */
+        private final float radius;
+        /** @param radius [px] */
+        public RoundCorner(float radius) {
+            this.radius = radius;
+        }
+        public Bitmap transform(Bitmap source) {
+            int width = source.getWidth();
+            int height = source.getHeight();
+            Bitmap dest = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+            Canvas canvas = new Canvas(dest);
+
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(0xff000000);
+            canvas.drawRoundRect(new RectF(0, 0, width, height), radius, radius, paint);
+            paint.setXfermode(new PorterDuffXfermode(Mode.SRC_IN));
+            canvas.drawBitmap(source, 0, 0, paint);
+
+            return dest;
+        }
+        public String getKey() {
+            return "round(" + radius + ")";
+        }
+    }
+}
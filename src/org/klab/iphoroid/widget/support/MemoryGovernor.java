@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+
+/**
+ * ヒープの空き具合に合わせて画像のキャッシュとスレッド数を調整します。
+ * <p>
+ * 最初に調整する時のアプリの設定値 (キャッシュ数、容量、猶予領域の容量、スレッド数、
+ * {@link DownloadTask} の同時実行数) を {@link #LEVEL_NORMAL} の基準として記録し、
+ * 使用中のメモリの割合や onLowMemory() に応じて基準から段階的に減らし、余裕ができれば基準に戻します。
+ * アプリが設定した値を上書きすることはありません。後から設定を変えた場合は {@link #captureBaseline()} を呼んでください。
+ * </p>
+ * <p>
+ * API 11 未満では Bitmap のピクセルはネイティブヒープにあり {@link Runtime} には現れないので、
+ * 使用中のメモリには {@link Debug#getNativeHeapAllocatedSize()} も含めます。
+ * </p>
+ * API 8 では Context#registerComponentCallbacks() が無いので、Application で以下の様に呼んでください。
+ * <pre>
+ *     public void onLowMemory() {
+ *         super.onLowMemory();
+ *         MemoryGovernor.onLowMemory();
+ *     }
+ *
+ *     public void onTrimMemory(int level) { // API 14
+ *         super.onTrimMemory(level);
+ *         MemoryGovernor.onTrimMemory(level);
+ *     }
+ * </pre>
+ * {@link #check()} はスクロールが止まった時 ({@link HasImage.Util#recycleImages(android.view.ViewGroup)}) に呼ばれます。
+ * UI スレッドから使用してください。
+ */
+public abstract class MemoryGovernor {
+
+    /** 余裕がある */
+    public static final int LEVEL_NORMAL = 0;
+    /** 減らす */
+    public static final int LEVEL_MODERATE = 1;
+    /** 最低限にする */
+    public static final int LEVEL_LOW = 2;
+
+    /** ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW (API 16) */
+    private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    /** ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL (API 16) */
+    private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    /** ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN (API 14) */
+    private static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    /** ComponentCallbacks2#TRIM_MEMORY_BACKGROUND (API 14) */
+    private static final int TRIM_MEMORY_BACKGROUND = 40;
+
+    /** Build.VERSION_CODES#HONEYCOMB, これ以降 Bitmap のピクセルは Java ヒープ */
+    private static final int HONEYCOMB = 11;
+
+    /** 使用中のメモリがこれを超えたら {@link #LEVEL_MODERATE} */
+    private static float moderateRatio = 0.75f;
+
+    /** 使用中のメモリがこれを超えたら {@link #LEVEL_LOW} */
+    private static float lowRatio = 0.9f;
+
+    /** 使用中のメモリがこれを下回ったら 1 段階戻す */
+    private static float recoverRatio = 0.5f;
+
+    /** */
+    private static int level = -1;
+
+    /** {@link #LEVEL_NORMAL} の値, null でまだ記録していない */
+    private static Baseline baseline;
+
+    /** アプリが設定した値 */
+    private static class Baseline {
+        final int cacheSize = ImageCache.getMaxSize();
+        final long cacheBytes = ImageCache.getMaxBytes();
+        final long graceBytes = ImageCache.getGraceMaxBytes();
+        final int workers = ImageLoader.getInstance().getWorkerCount();
+        final int decoders = ImageLoader.getInstance().getDecoderCount();
+        final int downloads = DownloadGate.getInstance().getMaxParallel();
+    }
+
+    /** [byte] */
+    public static long getMaxMemory() {
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * 使用中のメモリ [byte] です。
+     * API 11 未満ではネイティブヒープ (Bitmap のピクセル) も含みます。どちらもプロセスの上限 ({@link #getMaxMemory()}) に数えられます。
+     */
+    public static long getUsedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        if (Build.VERSION.SDK_INT < HONEYCOMB) {
+            used += Debug.getNativeHeapAllocatedSize();
+        }
+        return used;
+    }
+
+    /** */
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param moderateRatio 使用中のメモリの割合がこれを超えたら減らす
+     * @param lowRatio 使用中のメモリの割合がこれを超えたら最低限にする
+     * @param recoverRatio 使用中のメモリの割合がこれを下回ったら 1 段階戻す
+     */
+    public static void setRatios(float moderateRatio, float lowRatio, float recoverRatio) {
+        MemoryGovernor.moderateRatio = moderateRatio;
+        MemoryGovernor.lowRatio = lowRatio;
+        MemoryGovernor.recoverRatio = recoverRatio;
+    }
+
+    /**
+     * 現在の設定値を {@link #LEVEL_NORMAL} の基準として記録します。
+     * 最初に調整する時に自動的に呼ばれます。アプリが後から設定を変えた場合は、
+     * {@link #LEVEL_NORMAL} の時に呼んでください。
+     */
+    public static void captureBaseline() {
+        baseline = new Baseline();
+Log.i("MemoryGovernor", "baseline: cache: " + baseline.cacheSize + "/" + baseline.cacheBytes + ", grace: " + baseline.graceBytes + ", workers: " + baseline.workers + "/" + baseline.decoders + ", downloads: " + baseline.downloads);
+    }
+
+    /**
+     * メモリの使用状況を見て調整します。
+     */
+    public static void check() {
+        float ratio = (float) getUsedMemory() / getMaxMemory();
+        int newLevel;
+        if (ratio > lowRatio) {
+            newLevel = LEVEL_LOW;
+        } else if (ratio > moderateRatio) {
+            newLevel = Math.max(LEVEL_MODERATE, level);
+        } else if (ratio < recoverRatio) {
+            newLevel = Math.max(LEVEL_NORMAL, level - 1);
+        } else {
+            newLevel = Math.max(LEVEL_NORMAL, level);
+        }
+        setLevel(newLevel);
+    }
+
+    /** Application#onLowMemory() から呼んでください。 */
+    public static void onLowMemory() {
+        setLevel(LEVEL_LOW);
+    }
+
+    /** Application#onTrimMemory(int) (API 14) から呼んでください。 */
+    public static void onTrimMemory(int trimLevel) {
+        if (trimLevel >= TRIM_MEMORY_BACKGROUND || trimLevel == TRIM_MEMORY_RUNNING_CRITICAL) {
+            setLevel(LEVEL_LOW);
+        } else if (trimLevel >= TRIM_MEMORY_UI_HIDDEN || trimLevel == TRIM_MEMORY_RUNNING_LOW) {
+            setLevel(Math.max(LEVEL_MODERATE, level));
+        }
+    }
+
+    /**
+     * 指定した段階の値に設定します。
+     * 値は {@link #captureBaseline()} で記録したアプリの設定値を基準に減らしたもので、
+     * {@link #LEVEL_NORMAL} では基準の値そのものです。
+     */
+    public static void setLevel(int newLevel) {
+        if (newLevel == level) {
+            return;
+        }
+        if (baseline == null) {
+            captureBaseline();
+        }
+        int cacheSize = baseline.cacheSize;
+        long cacheBytes = baseline.cacheBytes;
+        long graceBytes = baseline.graceBytes;
+        int workers = baseline.workers;
+        int decoders = baseline.decoders;
+        int downloads = baseline.downloads;
+        if (newLevel == LEVEL_MODERATE) {
+            cacheSize = Math.max(1, cacheSize / 2);
+            cacheBytes /= 2;
+            graceBytes /= 4;
+            workers = Math.max(1, workers - 1);
+            decoders = Math.max(1, decoders / 2);
+            downloads = Math.max(1, downloads - 1);
+        } else if (newLevel == LEVEL_LOW) {
+            cacheSize = Math.max(1, cacheSize / 4);
+            cacheBytes /= 4;
+            graceBytes = 0;
+            workers = 1;
+            decoders = 1;
+            downloads = 1;
+        }
+Log.i("MemoryGovernor", "level: " + level + " -> " + newLevel + ", max: " + getMaxMemory() + ", used: " + getUsedMemory() + ", cache: " + cacheSize + "/" + cacheBytes + ", grace: " + graceBytes + ", workers: " + workers + "/" + decoders + ", downloads: " + downloads);
+        level = newLevel;
+
+        ImageCache.setMaxSize(cacheSize);
+        ImageCache.setMaxBytes(cacheBytes);
+        ImageCache.setGraceMaxBytes(graceBytes);
+        ImageCache.recycleEvicted();
+        ImageLoader loader = ImageLoader.getInstance();
+        loader.setWorkerCount(workers);
+        loader.setDecoderCount(decoders);
+        DownloadGate.getInstance().setMaxParallel(downloads);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+
+/**
+ * 取得に失敗した画像の URL を覚えておくキャッシュです。
+ * <p>
+ * 存在しない URL (FileNotFoundException、結果が null、デコードできない) を一度記録すると、
+ * 一定時間は {@link HasImage.Util#setImage(android.content.Context, ImageRequest)} 等で
+ * タスクを作らずにすぐ失敗扱いにします。行を表示し直すたびに同じ URL に接続することがなくなります。
+ * 再試行までの時間は失敗するたびに倍になり ({@link #setBaseTtl(long)} ~ {@link #setMaxTtl(long)})、
+ * 成功すると消えます。件数は {@link #setMaxSize(int)} で制限され、古いものから捨てられます。
+ * </p>
+ * thread safe です。
+ */
+public abstract class NegativeCache {
+
+    /** 失敗の記録 */
+    private static class Entry {
+        /** 連続して失敗した回数 */
+        int failures;
+        /** これより後なら再試行する [msec] */
+        long retryAt;
+    }
+
+    /** 最大件数 */
+    private static int maxSize = 256;
+
+    /** 最初の失敗の後、再試行しない時間 [msec] */
+    private static long baseTtl = 30 * 1000;
+
+    /** 再試行しない時間の上限 [msec] */
+    private static long maxTtl = 30 * 60 * 1000;
+
+    /** アクセス順 */
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    /** */
+    public static synchronized void setMaxSize(int maxSize) {
+        NegativeCache.maxSize = maxSize;
+    }
+
+    /** @param baseTtl [msec] */
+    public static synchronized void setBaseTtl(long baseTtl) {
+        NegativeCache.baseTtl = baseTtl;
+    }
+
+    /** @param maxTtl [msec] */
+    public static synchronized void setMaxTtl(long maxTtl) {
+        NegativeCache.maxTtl = maxTtl;
+    }
+
+    /**
+     * 失敗したばかりで、まだ再試行しない URL かどうかを返します。
+     * UI スレッドから呼んでも構いません。
+     */
+    public static synchronized boolean isFailed(String url) {
+        Entry entry = entries.get(url);
+        return entry != null && System.currentTimeMillis() < entry.retryAt;
+    }
+
+    /**
+     * 失敗を記録します。続けて失敗するたびに再試行までの時間が倍になります。
+     */
+    public static synchronized void setFailed(String url) {
+        Entry entry = entries.get(url);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(url, entry);
+        }
+        entry.failures++;
+        long ttl = baseTtl << Math.min(entry.failures - 1, 20);
+        if (ttl <= 0 || ttl > maxTtl) {
+            ttl = maxTtl;
+        }
+        entry.retryAt = System.currentTimeMillis() + ttl;
+Log.d("NegativeCache", "failed: " + entry.failures + ", ttl: " + ttl + ", " + url);
+    }
+
+    /** 成功した URL の記録を消します。 */
+    public static synchronized void remove(String url) {
+        entries.remove(url);
+    }
+
+    /** */
+    public static synchronized void clear() {
+        entries.clear();
+    }
+
+    /** */
+    public static synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+
+/**
+ * {@link DownloadTask} の結果のキャッシュです。
+ * <p>
+ * {@link DownloadTask#getResultTtl()} を上書きしたタスクだけが使います (opt-in)。
+ * キーはタスクのクラスとパラメータ ({@link #keyOf(Class, Object[])}) で、
+ * {@link DownloadTask#start(Object...)} で開始すると、有効期限内の結果があれば
+ * プログレスダイアログも出さずにすぐ {@link DownloadTask#setResult(Object)} します。
+ * </p>
+ * <p>
+ * 同じキーのタスクが実行中の場合は、もう一度ダウンロードせずにその結果を待ちます (single-flight)。
+ * 合計サイズは {@link #setMaxSize(long)} で制限され、使われていないものから捨てられます。
+ * </p>
+ * 結果のオブジェクトは共有されるので変更しないでください。thread safe です。
+ */
+public abstract class ResultCache {
+
+    /** */
+    private static class Entry {
+        /** */
+        final Object value;
+        /** [msec] */
+        final long expiresAt;
+        /** [byte] */
+        final long size;
+        /** */
+        Entry(Object value, long expiresAt, long size) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.size = size;
+        }
+    }
+
+    /** 実行中の要求, 同じキーの他のタスクはこの結果を待つ */
+    public static class Flight {
+        /** 実行しているスレッド, null の場合はキャッシュにあった */
+        private final Thread owner;
+        /** */
+        private boolean done;
+        /** */
+        private Object value;
+        /** */
+        Flight(Thread owner) {
+            this.owner = owner;
+        }
+        /** 呼んだスレッドが実行するべきかどうか */
+        public boolean isOwner() {
+            return owner == Thread.currentThread();
+        }
+        /**
+         * 実行しているタスクの結果を待ちます。
+         * @return null when the download failed
+         */
+        public synchronized Object await() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+            return value;
+        }
+        /** */
+        synchronized void finish(Object value) {
+            this.value = value;
+            this.done = true;
+            notifyAll();
+        }
+    }
+
+    /** 合計サイズの上限 [byte] */
+    private static long maxSize = 1024 * 1024;
+
+    /** 合計サイズ [byte] */
+    private static long size;
+
+    /** アクセス順 */
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** 実行中のキー */
+    private static final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+    /** @param maxSize 合計サイズの上限 [byte] */
+    public static synchronized void setMaxSize(long maxSize) {
+        ResultCache.maxSize = maxSize;
+        trim();
+    }
+
+    /** 合計サイズ [byte] */
+    public static synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * タスクのクラスとパラメータからキーを作ります。
+     * パラメータの toString() で区別できない場合は {@link DownloadTask#getResultKey(Object...)} を上書きしてください。
+     */
+    public static String keyOf(Class<?> type, Object[] params) {
+        return type.getName() + Arrays.deepToString(params);
+    }
+
+    /**
+     * @return null when not cached or expired
+     */
+    public static synchronized Object get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * @param ttl 有効期間 [msec]
+     * @param size [byte], 上限より大きいものはキャッシュしない
+     */
+    public static synchronized void put(String key, Object value, long ttl, long size) {
+        remove(key);
+        if (value == null || ttl <= 0 || size > maxSize) {
+            return;
+        }
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttl, size));
+        ResultCache.size += size;
+        trim();
+    }
+
+    /** */
+    public static synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+
+    /** type のタスクの結果をすべて捨てます。再読み込みの時等に使ってください。 */
+    public static synchronized void removeAll(Class<?> type) {
+        String prefix = type.getName() + "[";
+        for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<String, Entry> entry = i.next();
+            if (entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue().size;
+                i.remove();
+            }
+        }
+    }
+
+    /** */
+    public static synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * 実行を始めます。キャッシュにあるか同じキーを実行中の場合は、
+     * {@link Flight#isOwner()} が false の {@link Flight} を返すので {@link Flight#await()} で結果を待ってください。
+     * true の場合は実行して、必ず {@link #end(String, Flight, Object, long, long)} を呼んでください。
+     */
+    public static synchronized Flight begin(String key) {
+        Object value = get(key);
+        if (value != null) {
+            Flight flight = new Flight(null);
+            flight.finish(value);
+            return flight;
+        }
+        Flight flight = flights.get(key);
+        if (flight != null) {
+Log.d("ResultCache", "join: " + key);
+            return flight;
+        }
+        flight = new Flight(Thread.currentThread());
+        flights.put(key, flight);
+        return flight;
+    }
+
+    /**
+     * 実行が終わったことを待っているタスクに通知し、結果をキャッシュします。
+     *
+     * @param value null when failed, キャッシュしない
+     * @param ttl 有効期間 [msec]
+     * @param size [byte]
+     */
+    public static void end(String key, Flight flight, Object value, long ttl, long size) {
+        synchronized (ResultCache.class) {
+            if (flights.get(key) == flight) {
+                flights.remove(key);
+            }
+            put(key, value, ttl, size);
+        }
+        flight.finish(value);
+    }
+
+    /** 上限を超えた分を使われていないものから捨てます。 */
+    private static void trim() {
+        Iterator<Entry> i = entries.values().iterator();
+        while (size > maxSize && i.hasNext()) {
+            size -= i.next().size;
+            i.remove();
+        }
+    }
+}
@@ -21,6 +21,9 @@ import android.util.Log;
  */
 public abstract class SimpleImageDownloadTask extends DownloadTask<String, Bitmap> {
 
+    /** これまでにデコードした一番大きな画像 [byte], {@link #getEstimatedSize()} に使う */
+    private static volatile long largestBytes;
+
     /**
      * @param context for dialog 
      */
@@ -37,7 +40,7 @@ public abstract class SimpleImageDownloadTask extends DownloadTask<String, Bitma
 
     /**
      * 取得した画像は自動的にキャッシュします。
-     * キャッシュにあるかどうか判定します。
+     * キャッシュ (メモリ、ディスクの順) にあるかどうか判定します。
      *  
      * @param urls [0] image URL
      * @return null when error occurs
@@ -45,35 +48,67 @@ public abstract class SimpleImageDownloadTask extends DownloadTask<String, Bitma
      */
     @Override
     public final Bitmap download(String... urls) {
-        try {
-            Bitmap image = ImageCache.getImage(urls[0]);
-            if (image == null) {
-Log.d("SimpleImageDownloadTask", "loading URL: " + urls[0]);
-                image = getBitmap(urls[0]);
-                ImageCache.setImage(urls[0], image);
-            }
-            return image;
-        } catch (Exception e) {
-Log.e("SimpleImageDownloadTask", urls[0] + ": " + e.toString());
-            return null;
-        }
+        return load(urls[0]);
     }
     
     public final Bitmap downloadSetResult(String... urls) {
+        return load(urls[0]);
+    }
+
+    /**
+     * 画像全体をデコードするので、これまでにデコードした一番大きな画像の大きさを見積もりとします。
+     * まだ無い場合は分からない (0) ので、{@link DownloadGate} で画面ごとに 1 つずつ実行されます。
+     */
+    @Override
+    protected long getEstimatedSize() {
+        return largestBytes;
+    }
+
+    /**
+     * メモリ、ディスクの順にキャッシュを見て、無ければダウンロードします。
+     * ディスクキャッシュには {@link #getBytes(String)} で取得したデータをそのまま保存します。
+     */
+    private Bitmap load(String url) {
         try {
-            Bitmap image = ImageCache.getImage(urls[0]);
+            Bitmap image = ImageCache.getImage(url);
             if (image == null) {
-Log.d("SimpleImageDownloadTask", "loading URL: " + urls[0]);
-                image = getBitmap(urls[0]);
-                ImageCache.setImage(urls[0], image);
+                image = ImageCache.getDiskImage(url);
+                if (image == null) {
+Log.d("SimpleImageDownloadTask", "loading URL: " + url);
+                    byte[] data = getBytes(url);
+                    if (data != null) {
+                        image = BitmapDecoder.decodeByteArray(data, 0, 0);
+                        if (image != null) {
+                            ImageCache.setDiskBytes(url, data);
+                        }
+                    } else {
+                        image = getBitmap(url);
+                    }
+                }
+                ImageCache.setImage(url, image);
+                BitmapTracker.handOut(image); // setResult() でアプリに渡すので recycle() しない
+                long bytes = ImageCache.sizeOf(image);
+                if (bytes > largestBytes) {
+                    largestBytes = bytes;
+                }
             }
             return image;
         } catch (Exception e) {
-Log.e("SimpleImageDownloadTask", urls[0] + ": " + e.toString());
+Log.e("SimpleImageDownloadTask", url + ": " + e.toString());
             return null;
         }
     }
 
+    /**
+     * デコードする前の画像のデータを取得します。
+     * ディスクキャッシュを使う場合は上書きしてください。null を返すと {@link #getBitmap(String)} を使います。
+     *
+     * @return null when not supported
+     */
+    protected byte[] getBytes(String url) throws IOException {
+        return null;
+    }
+
     /** */
     public abstract Bitmap getBitmap(String url) throws IOException;
 }
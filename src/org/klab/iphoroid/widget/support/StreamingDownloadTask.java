@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2011 by KLab Inc., All rights reserved.
+ *
+ * Programmed by iphoroid team
+ */
+
+package org.klab.iphoroid.widget.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * ダウンロードしながら少しずつ結果を表示するタスクです。
+ * <p>
+ * {@link #download(Object...)} の中でパースできたもの (リストの項目等) から {@link #emit(Object)} すると、
+ * UI スレッドの {@link #onChunks(List)} にまとめて渡されます。
+ * 最初のものはすぐに渡し、その後は {@link #setInterval(long)} に 1 回までまとめるので、
+ * 全体の大きさに関係なく最初の項目を表示でき、項目ごとに再描画が走ることもありません。
+ * 最初のものを渡した時にプログレスダイアログは閉じます。
+ * </p>
+ * <p>
+ * {@link #onChunks(List)} は emit した順に呼ばれ、残っているものは {@link #setResult(Object)} の直前にすべて渡します。
+ * キャンセルされた後は呼ばれません。
+ * 項目は後から渡し直せないので、結果は {@link ResultCache} にキャッシュせず、同じ要求の実行中のタスクとも共有しません。
+ * </p>
+ * <pre>
+ *     new StreamingDownloadTask&lt;String, Entry, Integer&gt;(context, "Loading...") {
+ *         public Integer download(String... urls) throws Exception {
+ *             FeedParser parser = new FeedParser(urls[0]);
+ *             int count = 0;
+ *             while (parser.hasNext()) {
+ *                 emit(parser.next());
+ *                 count++;
+ *             }
+ *             return count;
+ *         }
+ *         protected void onChunks(List&lt;Entry&gt; entries) {
+ *             adapter.addAll(entries);
+ *         }
+ *         public void setResult(Integer count) {
+ *         }
+ *     }.execute(url);
+ * </pre>
+ */
+public abstract class StreamingDownloadTask<Param, Chunk, Result> extends DownloadTask<Param, Result> {
+
+    /** */
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** まとめる間隔 [msec] */
+    private long interval = 100;
+
+    /** まだ渡していないもの */
+    private List<Chunk> pendings = new ArrayList<Chunk>();
+
+    /** 渡すのが予約されているかどうか */
+    private boolean scheduled;
+
+    /** 前回渡した時刻 {@link SystemClock#uptimeMillis()}, 0 でまだ渡していない */
+    private volatile long lastDelivery;
+
+    /** */
+    private final Runnable flush = new Runnable() {
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * @param context for dialog
+     */
+    public StreamingDownloadTask(Context context, String message) {
+        super(context, message);
+    }
+
+    /** @param interval まとめる間隔 [msec], 0 で emit ごとに渡す */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * ダウンロードできた分を UI スレッドに渡します。{@link #download(Object...)} の中から呼んでください。
+     */
+    protected void emit(Chunk chunk) {
+        synchronized (this) {
+            pendings.add(chunk);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        long now = SystemClock.uptimeMillis();
+        long at = lastDelivery == 0 ? now : Math.max(now, lastDelivery + interval);
+        handler.postAtTime(flush, at);
+    }
+
+    /** {@link #onChunks(List)} を呼ばずに結果を返すことになるのでキャッシュしない */
+    @Override
+    protected final String getResultKey(Param... params) {
+        return null;
+    }
+
+    /**
+     * UI スレッドで、emit されたものがまとめて渡されます。
+     *
+     * @param chunks emit された順
+     */
+    protected abstract void onChunks(List<Chunk> chunks);
+
+    /** 残っているものを渡してから結果を設定します。 */
+    @Override
+    protected void onPostExecute(Result result) {
+        handler.removeCallbacks(flush);
+        deliver();
+        super.onPostExecute(result);
+    }
+
+    /** UI スレッドで、まだ渡していないものを渡します。 */
+    private void deliver() {
+        List<Chunk> chunks;
+        synchronized (this) {
+            chunks = pendings;
+            pendings = new ArrayList<Chunk>();
+            scheduled = false;
+        }
+        if (chunks.isEmpty() || isCancelled()) {
+            return;
+        }
+        if (lastDelivery == 0) {
+            dismissProgress();
+        }
+        lastDelivery = SystemClock.uptimeMillis();
+Log.d("StreamingDownloadTask", "chunks: " + chunks.size());
+        onChunks(chunks);
+    }
+}